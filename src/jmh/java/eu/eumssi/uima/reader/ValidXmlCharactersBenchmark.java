@@ -0,0 +1,66 @@
+package eu.eumssi.uima.reader;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of {@link MongoReaderBase#validXmlCharacters(String)} on clean text,
+ * text with scattered invalid characters and text with many surrogate pairs.
+ * Run with <code>mvn -P jmh verify</code>.
+ * 
+ * @author jgrivolla
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidXmlCharactersBenchmark {
+
+	/** kind of text: clean, dirty (1% invalid characters) or emoji (every 4th character a surrogate pair) */
+	@Param({"clean", "dirty", "emoji"})
+	public String kind;
+
+	/** length of the text in characters */
+	@Param({"10000"})
+	public int length;
+
+	private String text;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		StringBuilder sb = new StringBuilder(this.length);
+		while (sb.length() < this.length) {
+			int r = random.nextInt(100);
+			if (this.kind.equals("dirty") && r == 0) {
+				sb.append(random.nextBoolean() ? '\u0001' : '\uD83D'); // control character or lone surrogate
+			} else if (this.kind.equals("emoji") && r < 25) {
+				sb.appendCodePoint(0x1F600 + random.nextInt(80));
+			} else if (r % 6 == 0) {
+				sb.append(' ');
+			} else {
+				sb.append((char) ('a' + random.nextInt(26)));
+			}
+		}
+		this.text = sb.toString();
+	}
+
+	@Benchmark
+	public String validXmlCharacters() {
+		return MongoReaderBase.validXmlCharacters(this.text);
+	}
+}
@@ -0,0 +1,201 @@
+package eu.eumssi.uima.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-thread pool of byte arrays in power-of-two size classes (64KB to 16MB), used to
+ * serialize CASes without allocating (and growing) a new buffer for each document.
+ * A {@link Buffer} can be handed over to another thread (e.g. the one writing it to MongoDB)
+ * and released there, it then goes back to the pool of the thread that took it.
+ * Larger buffers are not pooled.
+ * @author jgrivolla
+ *
+ */
+public class BufferPool {
+
+	private static final int MIN_SHIFT = 16;
+	private static final int MAX_SHIFT = 24;
+	/** number of free arrays kept per size class */
+	private static final int MAX_FREE = 4;
+
+	private static final ThreadLocal<BufferPool> pools = new ThreadLocal<BufferPool>() {
+		@Override
+		protected BufferPool initialValue() {
+			return new BufferPool();
+		}
+	};
+
+	/** free arrays by size class (most recently released first), released from any thread */
+	private final ConcurrentLinkedDeque<byte[]>[] free;
+	private final AtomicInteger[] freeCount;
+
+	@SuppressWarnings("unchecked")
+	private BufferPool() {
+		int classes = MAX_SHIFT - MIN_SHIFT + 1;
+		this.free = new ConcurrentLinkedDeque[classes];
+		this.freeCount = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			this.free[i] = new ConcurrentLinkedDeque<byte[]>();
+			this.freeCount[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * @return an empty buffer from the pool of the current thread
+	 */
+	public static Buffer take() {
+		BufferPool pool = pools.get();
+		return pool.new Buffer(pool.allocate(1 << MIN_SHIFT));
+	}
+
+	/**
+	 * @param size minimum size
+	 * @return size class (index into {@link #free}), -1 if too large to be pooled
+	 */
+	private static int sizeClass(int size) {
+		int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+		return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+	}
+
+	private byte[] allocate(int size) {
+		int sizeClass = sizeClass(size);
+		if (sizeClass < 0) {
+			return new byte[size];
+		}
+		byte[] array = this.free[sizeClass].pollFirst();
+		if (array == null) {
+			return new byte[1 << (sizeClass + MIN_SHIFT)];
+		}
+		this.freeCount[sizeClass].decrementAndGet();
+		return array;
+	}
+
+	private void recycle(byte[] array) {
+		int sizeClass = sizeClass(array.length);
+		if (sizeClass < 0 || array.length != 1 << (sizeClass + MIN_SHIFT)) { // not pooled
+			return;
+		}
+		if (this.freeCount[sizeClass].incrementAndGet() > MAX_FREE) {
+			this.freeCount[sizeClass].decrementAndGet();
+			return;
+		}
+		this.free[sizeClass].offerFirst(array);
+	}
+
+
+	/**
+	 * Growable in-memory output stream backed by pooled arrays.
+	 * Its content is the first {@link #size()} bytes of {@link #array()}, so that it can be
+	 * written without copying it first. It must not be used after {@link #release()}.
+	 */
+	public class Buffer extends OutputStream {
+		private byte[] buf;
+		private int count = 0;
+		private boolean text = false;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		private Buffer(byte[] buf) {
+			this.buf = buf;
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > this.buf.length) {
+				byte[] bigger = allocate(Math.max(capacity, this.buf.length * 2));
+				System.arraycopy(this.buf, 0, bigger, 0, this.count);
+				recycle(this.buf);
+				this.buf = bigger;
+			}
+		}
+
+		@Override
+		public void write(int b) {
+			ensureCapacity(this.count + 1);
+			this.buf[this.count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensureCapacity(this.count + len);
+			System.arraycopy(b, off, this.buf, this.count, len);
+			this.count += len;
+		}
+
+		/**
+		 * @param out stream receiving the content
+		 * @throws IOException
+		 */
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(this.buf, 0, this.count);
+		}
+
+		/**
+		 * discard the content, keeping the memory
+		 */
+		public void reset() {
+			this.count = 0;
+		}
+
+		/**
+		 * @return number of bytes written
+		 */
+		public int size() {
+			return this.count;
+		}
+
+		/**
+		 * @return the backing array, holding the content in its first {@link #size()} bytes
+		 */
+		public byte[] array() {
+			return this.buf;
+		}
+
+		/**
+		 * @param text whether the content is UTF-8 text, to be stored as string rather than binary
+		 * @return this buffer
+		 */
+		public Buffer setText(boolean text) {
+			this.text = text;
+			return this;
+		}
+
+		/**
+		 * @return whether the content is UTF-8 text
+		 */
+		public boolean isText() {
+			return this.text;
+		}
+
+		/**
+		 * @return a copy of the content
+		 */
+		public byte[] toByteArray() {
+			return Arrays.copyOf(this.buf, this.count);
+		}
+
+		/**
+		 * give the memory back to the pool (only the first call has an effect)
+		 */
+		public void release() {
+			if (this.released.compareAndSet(false, true)) {
+				recycle(this.buf);
+				this.buf = null;
+				this.count = 0;
+			}
+		}
+
+		@Override
+		public String toString() {
+			if (this.buf == null) {
+				return "<released buffer>";
+			}
+			return this.text ? new String(this.buf, 0, this.count, StandardCharsets.UTF_8) : "<"+this.count+" bytes>";
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+package eu.eumssi.uima.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression codec for serialized CASes.
+ * Additional codecs can be plugged in by listing them in
+ * META-INF/services/eu.eumssi.uima.codec.CasCodec (see {@link java.util.ServiceLoader}).
+ * @author jgrivolla
+ *
+ */
+public interface CasCodec {
+
+	/**
+	 * @return id written to the header of each blob, unique among all codecs (0-31 are reserved for the built-in ones)
+	 */
+	byte getId();
+
+	/**
+	 * @return name used to select the codec in the configuration (case-insensitive)
+	 */
+	String getName();
+
+	/**
+	 * @param os the stream receiving the compressed data
+	 * @param level compression level, or a negative value for the codec's default
+	 * @return stream compressing everything written to it
+	 * @throws IOException
+	 */
+	OutputStream compress(OutputStream os, int level) throws IOException;
+
+	/**
+	 * @param is the compressed data
+	 * @return stream with the decompressed data
+	 * @throws IOException
+	 */
+	InputStream decompress(InputStream is) throws IOException;
+
+}
@@ -0,0 +1,369 @@
+package eu.eumssi.uima.codec;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Factory;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.tukaani.xz.BasicArrayCache;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Registry of the available {@link CasCodec}s, and framing of compressed blobs.
+ * Each blob starts with a header (the magic bytes "ECZ" followed by the codec id),
+ * so that it can be decompressed without knowing the codec that was used.
+ * <p>
+ * Built-in codecs: none, gzip, bzip2, xz, lz4 and zstd.
+ * @author jgrivolla
+ *
+ */
+public class CasCodecs {
+
+	private static final Logger logger = Logger.getLogger(CasCodecs.class.toString());
+
+	/** magic bytes at the start of each framed blob */
+	private static final byte[] MAGIC = {'E', 'C', 'Z'};
+
+	/** suffix of the fields holding framed blobs (e.g. xmi_z), as opposed to xmi_gz etc. for a fixed compression */
+	public static final String FIELD_SUFFIX = "_z";
+
+	private static final Map<Byte, CasCodec> byId = new HashMap<Byte, CasCodec>();
+	private static final Map<String, CasCodec> byName = new HashMap<String, CasCodec>();
+
+	static {
+		register(new NoneCodec());
+		register(new GzipCodec());
+		register(new Bzip2Codec());
+		register(new XzCodec());
+		register(new Lz4Codec());
+		register(new ZstdCodec());
+		for (CasCodec codec : ServiceLoader.load(CasCodec.class)) {
+			register(codec);
+		}
+	}
+
+	private CasCodecs() {
+	}
+
+	private static void register(CasCodec codec) {
+		if (byId.containsKey(codec.getId()) || byName.containsKey(codec.getName().toLowerCase())) {
+			logger.warning("ignoring codec "+codec.getName()+" ("+codec.getId()+"), id or name already in use");
+			return;
+		}
+		byId.put(codec.getId(), codec);
+		byName.put(codec.getName().toLowerCase(), codec);
+	}
+
+	/**
+	 * @param name name of the codec (case-insensitive)
+	 * @return the codec
+	 * @throws IllegalArgumentException if there is no such codec
+	 */
+	public static CasCodec forName(String name) {
+		CasCodec codec = byName.get(name.toLowerCase());
+		if (codec == null) {
+			throw new IllegalArgumentException("unknown codec "+name+", available: "+byName.keySet());
+		}
+		return codec;
+	}
+
+	/**
+	 * Write the header and return a compressing stream.
+	 * @param os the stream receiving the framed blob
+	 * @param codec the codec to use
+	 * @param level compression level, or a negative value for the codec's default
+	 * @return stream compressing everything written to it (must be closed to finish the blob)
+	 * @throws IOException
+	 */
+	public static OutputStream compress(OutputStream os, CasCodec codec, int level) throws IOException {
+		os.write(MAGIC);
+		os.write(codec.getId());
+		return codec.compress(os, level);
+	}
+
+	/**
+	 * Read the header and return a decompressing stream for the codec it names.
+	 * @param is a framed blob
+	 * @return stream with the decompressed data
+	 * @throws IOException if the header is missing or names an unknown codec
+	 */
+	public static InputStream decompress(InputStream is) throws IOException {
+		byte[] header = new byte[MAGIC.length + 1];
+		try {
+			new DataInputStream(is).readFully(header);
+		} catch (EOFException e) {
+			throw new IOException("blob too short for codec header");
+		}
+		if (!Arrays.equals(MAGIC, Arrays.copyOf(header, MAGIC.length))) {
+			throw new IOException("missing codec header");
+		}
+		CasCodec codec = byId.get(header[MAGIC.length]);
+		if (codec == null) {
+			throw new IOException("unknown codec id "+header[MAGIC.length]);
+		}
+		return codec.decompress(is);
+	}
+
+
+	/** no compression */
+	public static class NoneCodec implements CasCodec {
+		public byte getId() {
+			return 0;
+		}
+		public String getName() {
+			return "none";
+		}
+		public OutputStream compress(OutputStream os, int level) {
+			return os;
+		}
+		public InputStream decompress(InputStream is) {
+			return is;
+		}
+	}
+
+	/** gzip, level 1-9 (default 6); reuses one deflater/inflater per thread */
+	public static class GzipCodec implements CasCodec {
+		private static final int FHCRC = 2;
+		private static final int FEXTRA = 4;
+		private static final int FNAME = 8;
+		private static final int FCOMMENT = 16;
+		private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+			@Override
+			protected Inflater initialValue() {
+				return new Inflater(true);
+			}
+		};
+		public byte getId() {
+			return 1;
+		}
+		public String getName() {
+			return "gzip";
+		}
+		private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			}
+		};
+		/**
+		 * Write a gzip stream, deflating the data with the thread's deflater
+		 */
+		public OutputStream compress(OutputStream os, int level) throws IOException {
+			Deflater deflater = deflaters.get();
+			deflater.reset();
+			deflater.setLevel(level >= 0 ? level : Deflater.DEFAULT_COMPRESSION);
+			return new ReusableGzipOutputStream(os, deflater);
+		}
+		/**
+		 * Skip the gzip header and inflate the data with the thread's inflater
+		 * (only a single gzip member is read, its trailer is verified at the end)
+		 */
+		public InputStream decompress(InputStream is) throws IOException {
+			DataInputStream header = new DataInputStream(is);
+			if (header.readUnsignedByte() != 0x1f || header.readUnsignedByte() != 0x8b || header.readUnsignedByte() != 8) {
+				throw new IOException("not in gzip format");
+			}
+			int flags = header.readUnsignedByte();
+			header.readFully(new byte[6]); // mtime, xfl, os
+			if ((flags & FEXTRA) != 0) {
+				header.readFully(new byte[header.readUnsignedByte() | (header.readUnsignedByte() << 8)]);
+			}
+			if ((flags & FNAME) != 0) {
+				while (header.readUnsignedByte() != 0) {
+				}
+			}
+			if ((flags & FCOMMENT) != 0) {
+				while (header.readUnsignedByte() != 0) {
+				}
+			}
+			if ((flags & FHCRC) != 0) {
+				header.readFully(new byte[2]);
+			}
+			Inflater inflater = inflaters.get();
+			inflater.reset();
+			return new ReusableGzipInputStream(is, inflater);
+		}
+	}
+
+	/**
+	 * gzip input stream (after the header) using a given inflater, which checks
+	 * the CRC32 and size in the trailer once the compressed data is exhausted
+	 */
+	private static class ReusableGzipInputStream extends InflaterInputStream {
+		private final CRC32 crc = new CRC32();
+		private boolean verified = false;
+
+		ReusableGzipInputStream(InputStream in, Inflater inflater) {
+			super(in, inflater);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (this.verified) {
+				return -1;
+			}
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				this.crc.update(b, off, n);
+			} else if (n < 0) {
+				verifyTrailer();
+				this.verified = true;
+			}
+			return n;
+		}
+
+		/**
+		 * compare the trailer (partly still in the input buffer) with the inflated data
+		 */
+		private void verifyTrailer() throws IOException {
+			byte[] trailer = new byte[8];
+			int buffered = Math.min(this.inf.getRemaining(), trailer.length);
+			System.arraycopy(this.buf, this.len - this.inf.getRemaining(), trailer, 0, buffered);
+			try {
+				new DataInputStream(this.in).readFully(trailer, buffered, trailer.length - buffered);
+			} catch (EOFException e) {
+				throw new ZipException("truncated gzip trailer");
+			}
+			if (readInt(trailer, 0) != this.crc.getValue()
+					|| readInt(trailer, 4) != (this.inf.getBytesWritten() & 0xffffffffL)) {
+				throw new ZipException("corrupt gzip data (CRC or size mismatch)");
+			}
+		}
+
+		/** read little-endian unsigned int */
+		private static long readInt(byte[] b, int off) {
+			return (b[off] & 0xffL) | ((b[off + 1] & 0xffL) << 8)
+					| ((b[off + 2] & 0xffL) << 16) | ((b[off + 3] & 0xffL) << 24);
+		}
+	}
+
+	/**
+	 * gzip output stream using a given deflater, which (unlike in GZIPOutputStream)
+	 * is not released on close, so that it can be reset and used for the next stream
+	 */
+	private static class ReusableGzipOutputStream extends DeflaterOutputStream {
+		private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+		private final CRC32 crc = new CRC32();
+
+		ReusableGzipOutputStream(OutputStream out, Deflater deflater) throws IOException {
+			super(out, deflater);
+			out.write(HEADER);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			this.crc.update(b, off, len);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (!this.def.finished()) {
+				super.finish();
+				writeInt((int) this.crc.getValue());
+				writeInt((int) this.def.getBytesRead());
+			}
+		}
+
+		/** write little-endian int */
+		private void writeInt(int i) throws IOException {
+			this.out.write(i & 0xff);
+			this.out.write((i >> 8) & 0xff);
+			this.out.write((i >> 16) & 0xff);
+			this.out.write((i >> 24) & 0xff);
+		}
+	}
+
+	/** bzip2, level = block size 1-9 (default 9) */
+	public static class Bzip2Codec implements CasCodec {
+		public byte getId() {
+			return 2;
+		}
+		public String getName() {
+			return "bzip2";
+		}
+		public OutputStream compress(OutputStream os, int level) throws IOException {
+			return level < 0 ? new BZip2CompressorOutputStream(os) : new BZip2CompressorOutputStream(os, level);
+		}
+		public InputStream decompress(InputStream is) throws IOException {
+			return new BZip2CompressorInputStream(is);
+		}
+	}
+
+	/** xz, level = preset 0-9 (default 6); the large LZMA2 dictionaries are reused through an array cache */
+	public static class XzCodec implements CasCodec {
+		public byte getId() {
+			return 3;
+		}
+		public String getName() {
+			return "xz";
+		}
+		public OutputStream compress(OutputStream os, int level) throws IOException {
+			return new XZOutputStream(os, new LZMA2Options(level < 0 ? LZMA2Options.PRESET_DEFAULT : level),
+					BasicArrayCache.getInstance());
+		}
+		public InputStream decompress(InputStream is) throws IOException {
+			return new XZInputStream(is, BasicArrayCache.getInstance());
+		}
+	}
+
+	/** LZ4 block format, level 0 = fast compressor (default), 1-17 = high compressor */
+	public static class Lz4Codec implements CasCodec {
+		private static final int BLOCK_SIZE = 1 << 16;
+		public byte getId() {
+			return 4;
+		}
+		public String getName() {
+			return "lz4";
+		}
+		public OutputStream compress(OutputStream os, int level) {
+			LZ4Factory factory = LZ4Factory.fastestInstance();
+			return new LZ4BlockOutputStream(os, BLOCK_SIZE,
+					level > 0 ? factory.highCompressor(level) : factory.fastCompressor());
+		}
+		public InputStream decompress(InputStream is) {
+			return new LZ4BlockInputStream(is, LZ4Factory.fastestInstance().fastDecompressor());
+		}
+	}
+
+	/** Zstandard, level 1-22 (default 3) */
+	public static class ZstdCodec implements CasCodec {
+		private static final int DEFAULT_LEVEL = 3;
+		public byte getId() {
+			return 5;
+		}
+		public String getName() {
+			return "zstd";
+		}
+		public OutputStream compress(OutputStream os, int level) throws IOException {
+			return new ZstdOutputStream(os, level > 0 ? level : DEFAULT_LEVEL);
+		}
+		public InputStream decompress(InputStream is) throws IOException {
+			return new ZstdInputStream(is);
+		}
+	}
+
+}
@@ -0,0 +1,8 @@
+/**
+ * compression codecs for serialized CASes
+ */
+/**
+ * @author jgrivolla
+ *
+ */
+package eu.eumssi.uima.codec;
@@ -8,6 +8,8 @@ import static org.apache.uima.fit.util.JCasUtil.selectSingle;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.logging.Logger;
 
@@ -21,6 +23,7 @@ import org.xml.sax.SAXException;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 
 import eu.eumssi.uima.ts.AsrToken;
 import eu.eumssi.uima.ts.AsrWord;
@@ -68,6 +71,7 @@ public class FakeAsrSegmentConsumer extends MongoConsumerBase {
 		String text = "";
 		int beginOffset = 0;
 		int endOffset = 0;
+		List<DBObject> segments = new ArrayList<DBObject>();
 		for (AsrToken asrToken: select(jCAS, AsrWord.class)) {
 			logger.fine(String.format("  %-16s\t%-10s%n", 
 					asrToken.getCoveredText(),
@@ -78,59 +82,43 @@ public class FakeAsrSegmentConsumer extends MongoConsumerBase {
 			endOffset = asrToken.getEndTime();
 			text += asrToken.getCoveredText() + " "; // could use a StringBuilder, but not worth it
 			if (text.length() > 200) { // arbitrarily break text into segments
-				BasicDBObject asrSegmentDbObject = new BasicDBObject();
-				// TODO: use timestamp based UUID for better performance
-				asrSegmentDbObject.append("_id", UUID.randomUUID());
-				asrSegmentDbObject.append("parent_id", UUID.fromString(meta.getDocumentId()));
-				asrSegmentDbObject.append("meta",
-						new BasicDBObject("extracted",
-								new BasicDBObject("audio_transcript", text))
-						);
-				asrSegmentDbObject.append("beginOffset", beginOffset);
-				asrSegmentDbObject.append("endOffset", endOffset);
-				asrSegmentDbObject.append("segmentType", "FakeAsrSegment");
-				try {
-					this.segColl.insert(asrSegmentDbObject);
-				} catch (Exception e) {
-					logger.severe(e.toString());
-				}
+				segments.add(createSegment(meta.getDocumentId(), text, beginOffset, endOffset));
 				text="";
 			}
 		}
 		// insert remaining text as new segment
-		BasicDBObject asrSegmentDbObject = new BasicDBObject();
-		// TODO: use timestamp based UUID for better performance
-		asrSegmentDbObject.append("_id", UUID.randomUUID());
-		asrSegmentDbObject.append("parent_id", UUID.fromString(meta.getDocumentId()));
-		asrSegmentDbObject.append("meta",
-				new BasicDBObject("extracted",
-						new BasicDBObject("audio_transcript", text))
-				);
-		asrSegmentDbObject.append("beginOffset", beginOffset);
-		asrSegmentDbObject.append("endOffset", endOffset);
-		asrSegmentDbObject.append("segmentType", "FakeAsrSegment");
-		try {
-			this.segColl.insert(asrSegmentDbObject);
-		} catch (Exception e) {
-			logger.severe(e.toString());
-		}
+		segments.add(createSegment(meta.getDocumentId(), text, beginOffset, endOffset));
+		writeSegments(this.segColl, meta.getDocumentId(), "FakeAsrSegment", segments);
 
 		/* write to MongoDB */
-		BasicDBObject query = new BasicDBObject();
-		query.append("_id", UUID.fromString(meta.getDocumentId()));
 		BasicDBObject update = new BasicDBObject();
 		update.append("$addToSet", new BasicDBObject("processing.available_data", this.queueName));
-		try {
-			this.coll.update(query, update);
-		} catch (Exception e) {
-			logger.severe(e.toString());
-			logger.severe(this.coll.findOne(new BasicDBObject("_id", UUID.fromString(meta.getDocumentId()))).toString());
-		}
+		submitUpdate(meta.getDocumentId(), update);
 
 	}
 
 
 
+	/**
+	 * create a segment object for the segment collection
+	 * @param documentId id of the parent document
+	 * @param text segment text
+	 * @param beginOffset begin time
+	 * @param endOffset end time
+	 * @return the segment
+	 */
+	private static DBObject createSegment(String documentId, String text, int beginOffset, int endOffset) {
+		BasicDBObject asrSegmentDbObject = new BasicDBObject();
+		asrSegmentDbObject.append("parent_id", UUID.fromString(documentId));
+		asrSegmentDbObject.append("meta",
+				new BasicDBObject("extracted",
+						new BasicDBObject("audio_transcript", text))
+				);
+		asrSegmentDbObject.append("beginOffset", beginOffset);
+		asrSegmentDbObject.append("endOffset", endOffset);
+		asrSegmentDbObject.append("segmentType", "FakeAsrSegment");
+		return asrSegmentDbObject;
+	}
 
 	/**
 	 * return example descriptor (XML) when calling main method
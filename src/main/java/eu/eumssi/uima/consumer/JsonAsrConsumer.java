@@ -12,7 +12,6 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
 import java.util.logging.Logger;
 
 import org.apache.uima.UimaContext;
@@ -82,8 +81,6 @@ public class JsonAsrConsumer extends MongoConsumerBase {
 
 
 		/* write to MongoDB */
-		BasicDBObject query = new BasicDBObject();
-		query.append("_id", UUID.fromString(meta.getDocumentId()));
 		BasicDBObject updates = new BasicDBObject();
 		//updates.append("meta.extracted.audio_transcript.pretty_html", prettyAsrDbObject);
 		Gson gson = new GsonBuilder().setPrettyPrinting().create();
@@ -92,13 +89,8 @@ public class JsonAsrConsumer extends MongoConsumerBase {
 		BasicDBObject update = new BasicDBObject();
 		update.append("$set", updates);
 		update.append("$addToSet", new BasicDBObject("processing.available_data", this.queueName));
-		try {
-			coll.update(query, update);
-			logger.fine(json);
-		} catch (Exception e) {
-			logger.severe(e.toString());
-			logger.severe(coll.findOne(new BasicDBObject("_id", UUID.fromString(meta.getDocumentId()))).toString());
-		}
+		submitUpdate(meta.getDocumentId(), update);
+		logger.fine(json);
 	}
 
 
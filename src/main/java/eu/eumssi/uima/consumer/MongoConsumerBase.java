@@ -5,19 +5,53 @@ package eu.eumssi.uima.consumer;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.apache.uima.UimaContext;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
 import org.apache.uima.fit.component.JCasConsumer_ImplBase;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.fit.descriptor.ExternalResource;
 import org.apache.uima.fit.factory.AnalysisEngineFactory;
 import org.apache.uima.resource.ResourceInitializationException;
+import org.bson.BSON;
+import org.bson.io.OutputBuffer;
 import org.xml.sax.SAXException;
 
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
 import com.mongodb.MongoClient;
-import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+
+import eu.eumssi.uima.codec.BufferPool;
+import eu.eumssi.uima.reader.util.Checkpoint;
+import eu.eumssi.uima.resource.MongoClientResource;
+import eu.eumssi.uima.resource.SharedMongoClients;
+import eu.eumssi.uima.resource.WriteCoalescer;
 
 /**
  * @author jgrivolla
@@ -49,10 +83,64 @@ public abstract class MongoConsumerBase extends JCasConsumer_ImplBase {
 	@ConfigurationParameter(name=PARAM_QUEUE, mandatory=true,
 			description="Queue name to mark in processing.available_data")
 	protected String queueName;
+	public static final String PARAM_CHECKPOINT = "CheckpointName";
+	@ConfigurationParameter(name=PARAM_CHECKPOINT, mandatory=false, defaultValue="",
+			description="Checkpoint of the reader to acknowledge stored documents to (only set on the final consumer)")
+	protected String checkpointName;
+	public static final String PARAM_BULK_SIZE = "BulkSize";
+	@ConfigurationParameter(name=PARAM_BULK_SIZE, mandatory=false, defaultValue="100",
+			description="Number of document updates sent to MongoDB in one bulk operation (1 = write synchronously)")
+	protected Integer bulkSize;
+	public static final String PARAM_BULK_BYTES = "BulkBytes";
+	@ConfigurationParameter(name=PARAM_BULK_BYTES, mandatory=false, defaultValue="16777216",
+			description="Maximum size (bytes) of large values (e.g. serialized CASes) buffered before they are written")
+	protected Integer bulkBytes;
+	public static final String PARAM_FLUSH_INTERVAL = "FlushIntervalMillis";
+	@ConfigurationParameter(name=PARAM_FLUSH_INTERVAL, mandatory=false, defaultValue="1000",
+			description="Maximum time (ms) an update is buffered before it is written")
+	protected Integer flushIntervalMillis;
+	public static final String RES_COALESCER = "WriteCoalescer";
+	@ExternalResource(key=RES_COALESCER, mandatory=false,
+			description="Shared resource merging the updates of all consumers into one write per document")
+	protected WriteCoalescer coalescer;
+	/** role of this consumer in the coalescer, shared by its replicas */
+	private String coalescerRole;
+	public static final String RES_MONGOCLIENT = "MongoClient";
+	@ExternalResource(key=RES_MONGOCLIENT, mandatory=false,
+			description="Optional resource configuring the shared MongoClient (pool size, timeouts, read preference)")
+	protected MongoClientResource mongoClientResource;
 	
 	protected MongoClient mongoClient;
 	protected DB db;
 
+	/** updates waiting to be written (guarded by this) */
+	private List<PendingUpdate> buffer = new ArrayList<PendingUpdate>();
+	private long bufferSince;
+	private long bufferBytes;
+	/** maximum time to wait for the writer thread when shutting down */
+	private static final long SHUTDOWN_TIMEOUT_SECONDS = 300;
+	/** background thread executing the bulk operations */
+	private ScheduledExecutorService writer;
+	private Future<?> inFlight;
+	private final AtomicLong failedUpdates = new AtomicLong();
+
+	/**
+	 * an update of one document, as handed over by the consumer
+	 */
+	private static class PendingUpdate {
+		final String documentId;
+		final DBObject query;
+		final DBObject update;
+		final List<Runnable> onStored;
+
+		PendingUpdate(String documentId, DBObject query, DBObject update, List<Runnable> onStored) {
+			this.documentId = documentId;
+			this.query = query;
+			this.update = update;
+			this.onStored = onStored;
+		}
+	}
+
 
 	/**
 	 * @return 
@@ -65,8 +153,11 @@ public abstract class MongoConsumerBase extends JCasConsumer_ImplBase {
 		try {
 			logger.info("mongoUri: "+this.mongoUri);
 			logger.info("monoDb"+this.mongoDb);
-			MongoClientURI uri = new MongoClientURI(this.mongoUri);
-			this.mongoClient = new MongoClient(uri);
+			if (this.mongoClientResource != null) {
+				this.mongoClient = this.mongoClientResource.acquire(this.mongoUri);
+			} else {
+				this.mongoClient = SharedMongoClients.acquire(this.mongoUri);
+			}
 		} catch (UnknownHostException e) {
 			throw new ResourceInitializationException(e);
 		}
@@ -74,11 +165,388 @@ public abstract class MongoConsumerBase extends JCasConsumer_ImplBase {
 		logger.info("connected to DB "+this.db.getName());
 		this.coll = db.getCollection(this.mongoCollection);
 		logger.info("connected to Collection "+this.coll.getName());
+		// the collection object is shared, the encoder only adds support for pooled buffers
+		this.coll.setDBEncoderFactory(PooledBufferEncoder.FACTORY);
 		if (isNull(this.outputFieldParam)) {
 			this.outputField = "meta.extracted."+this.queueName;
 		} else {
 			this.outputField = this.outputFieldParam;
 		}
+		if (this.coalescer != null) {
+			this.coalescerRole = getContext().getQualifiedContextName();
+			this.coalescer.register(this.coll.getFullName(), this.coalescerRole);
+		}
+		if (this.bulkSize > 1) {
+			// daemon thread, so that a pipeline that fails before collectionProcessComplete doesn't hang the JVM
+			this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "MongoConsumerWriter-"+queueName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.writer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					flushIfOlderThan(flushIntervalMillis);
+				}
+			}, this.flushIntervalMillis, this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Write an update for the given document, identified by its _id.
+	 * If a {@link WriteCoalescer} is bound, the update is merged with those of the other
+	 * consumers, and only written by the last consumer to process the document.
+	 * @param documentId id of the document, as found in SourceMeta
+	 * @param update the update to apply
+	 * @see #submitUpdate(String, DBObject, DBObject)
+	 */
+	protected void submitUpdate(String documentId, DBObject update) {
+		submitUpdate(documentId, update, 0, null);
+	}
+
+	/**
+	 * Write an update for the given document, identified by its _id.
+	 * @param documentId id of the document, as found in SourceMeta
+	 * @param update the update to apply, null if there is nothing to write (see {@link #skipUpdate(String)})
+	 * @param bytes size of large values in the update (e.g. serialized CASes), to bound the buffer
+	 * @param onStored action to run once the update has been written successfully (null for none)
+	 * @see #submitUpdate(String, DBObject)
+	 */
+	protected void submitUpdate(String documentId, DBObject update, long bytes, Runnable onStored) {
+		if (this.coalescer != null) {
+			// usually empty until the other consumers contributed
+			Map<String, WriteCoalescer.Contribution> ready = this.coalescer.contribute(this.coll.getFullName(),
+					this.coalescerRole, documentId, update, bytes, onStored);
+			submitMerged(ready);
+			return;
+		}
+		if (update == null) { // nothing stored, so not acknowledged to the checkpoint either
+			return;
+		}
+		List<Runnable> actions = onStored == null ? Collections.<Runnable>emptyList() : Collections.singletonList(onStored);
+		submitUpdate(documentId, new BasicDBObject("_id", UUID.fromString(documentId)), update, bytes, actions);
+	}
+
+	/**
+	 * Declare that this consumer has nothing to write for the given document
+	 * (e.g. because it failed or has no results), so that a {@link WriteCoalescer}
+	 * doesn't wait for its contribution.
+	 * @param documentId id of the document, as found in SourceMeta
+	 */
+	protected void skipUpdate(String documentId) {
+		submitUpdate(documentId, null, 0, null);
+	}
+
+	/**
+	 * write merged updates handed out by the coalescer
+	 * @param ready merged updates by document id
+	 */
+	private void submitMerged(Map<String, WriteCoalescer.Contribution> ready) {
+		for (Map.Entry<String, WriteCoalescer.Contribution> entry : ready.entrySet()) {
+			WriteCoalescer.Contribution merged = entry.getValue();
+			if (merged.isEmpty()) { // all consumers skipped it
+				continue;
+			}
+			submitUpdate(entry.getKey(), new BasicDBObject("_id", UUID.fromString(entry.getKey())),
+					merged.getUpdate(), merged.getBytes(), merged.getOnStored());
+		}
+	}
+
+	/**
+	 * Write an update to the collection. Updates are buffered and written as unordered bulk
+	 * operation in a background thread once {@link #PARAM_BULK_SIZE} updates
+	 * (or {@link #PARAM_BULK_BYTES} of large values) are collected,
+	 * after {@link #PARAM_FLUSH_INTERVAL} or at the end of the collection.
+	 * Stored documents are acknowledged to the reader's checkpoint once written.
+	 * @param documentId id of the document, as found in SourceMeta
+	 * @param query the query selecting the document
+	 * @param update the update to apply
+	 */
+	protected void submitUpdate(String documentId, DBObject query, DBObject update) {
+		submitUpdate(documentId, query, update, 0, Collections.<Runnable>emptyList());
+	}
+
+	/**
+	 * Write an update to the collection.
+	 * @param documentId id of the document, as found in SourceMeta
+	 * @param query the query selecting the document
+	 * @param update the update to apply
+	 * @param bytes size of large values in the update (e.g. serialized CASes), to bound the buffer
+	 * @param onStored actions to run once the update has been written successfully
+	 * @see #submitUpdate(String, DBObject, DBObject)
+	 */
+	private void submitUpdate(String documentId, DBObject query, DBObject update, long bytes, List<Runnable> onStored) {
+		PendingUpdate pending = new PendingUpdate(documentId, query, update, onStored);
+		if (this.writer == null) { // no buffering
+			executeBulk(Collections.singletonList(pending));
+			return;
+		}
+		List<PendingUpdate> full = null;
+		synchronized (this) {
+			if (this.buffer.isEmpty()) {
+				this.bufferSince = System.currentTimeMillis();
+			}
+			this.buffer.add(pending);
+			this.bufferBytes += bytes;
+			if (this.buffer.size() >= this.bulkSize || this.bufferBytes >= this.bulkBytes) {
+				full = takeBuffer();
+			}
+		}
+		if (full != null) {
+			final List<PendingUpdate> updates = full;
+			// only one bulk in flight, so that the buffer can't grow without bounds
+			waitForInFlight();
+			this.inFlight = this.writer.submit(new Runnable() {
+				public void run() {
+					executeBulk(updates);
+				}
+			});
+		}
+	}
+
+	private synchronized List<PendingUpdate> takeBuffer() {
+		List<PendingUpdate> updates = this.buffer;
+		this.buffer = new ArrayList<PendingUpdate>();
+		this.bufferBytes = 0;
+		return updates;
+	}
+
+	/**
+	 * write the buffered updates if the oldest one has been waiting too long (run by the writer thread)
+	 * @param maxAge maximum age of the oldest update in milliseconds
+	 */
+	private void flushIfOlderThan(long maxAge) {
+		List<PendingUpdate> updates;
+		synchronized (this) {
+			if (this.buffer.isEmpty() || System.currentTimeMillis() - this.bufferSince < maxAge) {
+				return;
+			}
+			updates = takeBuffer();
+		}
+		executeBulk(updates);
+	}
+
+	private void waitForInFlight() {
+		if (this.inFlight == null) {
+			return;
+		}
+		try {
+			this.inFlight.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.severe(e.getCause().toString());
+		}
+	}
+
+	/**
+	 * Write the updates as one unordered bulk operation, logging the documents that failed.
+	 * Pooled buffers in the updates are released afterwards.
+	 * @param updates the updates to write
+	 */
+	private void executeBulk(List<PendingUpdate> updates) {
+		Set<Integer> failed = new HashSet<Integer>();
+		try {
+			BulkWriteOperation bulk = this.coll.initializeUnorderedBulkOperation();
+			for (PendingUpdate pending : updates) {
+				bulk.find(pending.query).update(pending.update);
+			}
+			bulk.execute();
+		} catch (BulkWriteException e) {
+			for (BulkWriteError error : e.getWriteErrors()) {
+				failed.add(error.getIndex());
+				logger.severe("update of document "+updates.get(error.getIndex()).documentId+" failed: "+error.getMessage());
+			}
+		} catch (MongoException e) {
+			logger.severe("bulk update of "+updates.size()+" documents failed: "+e.toString());
+			for (int i = 0; i < updates.size(); i++) {
+				failed.add(i);
+			}
+		}
+		this.failedUpdates.addAndGet(failed.size());
+		for (int i = 0; i < updates.size(); i++) {
+			if (!failed.contains(i)) {
+				PendingUpdate pending = updates.get(i);
+				for (Runnable action : pending.onStored) {
+					try {
+						action.run();
+					} catch (RuntimeException e) {
+						logger.warning("post-write action for document "+pending.documentId+" failed: "+e.toString());
+					}
+				}
+				acknowledge(pending.documentId);
+			}
+		}
+		for (PendingUpdate pending : updates) {
+			releaseBuffers(pending.update);
+		}
+	}
+
+	/**
+	 * give the pooled buffers used as values in the update back to their pool
+	 * @param value an update, or a value in it
+	 */
+	private static void releaseBuffers(Object value) {
+		if (value instanceof BufferPool.Buffer) {
+			((BufferPool.Buffer) value).release();
+		} else if (value instanceof DBObject) {
+			for (String key : ((DBObject) value).keySet()) {
+				releaseBuffers(((DBObject) value).get(key));
+			}
+		}
+	}
+
+	/**
+	 * Encoder writing {@link BufferPool.Buffer}s as binary (or as string for text),
+	 * straight from their backing array, so that serialized CASes are not copied for the driver
+	 */
+	private static class PooledBufferEncoder extends DefaultDBEncoder {
+		static final DBEncoderFactory FACTORY = new DBEncoderFactory() {
+			public DBEncoder create() {
+				return new PooledBufferEncoder();
+			}
+		};
+
+		@Override
+		protected boolean putSpecial(String name, Object value) {
+			if (!(value instanceof BufferPool.Buffer)) {
+				return super.putSpecial(name, value);
+			}
+			BufferPool.Buffer buffer = (BufferPool.Buffer) value;
+			OutputBuffer out = getOutputBuffer();
+			if (buffer.isText()) { // UTF-8 string, with terminating 0
+				_put(BSON.STRING, name);
+				out.writeInt(buffer.size() + 1);
+				out.write(buffer.array(), 0, buffer.size());
+				out.write(0);
+			} else {
+				_put(BSON.BINARY, name);
+				out.writeInt(buffer.size());
+				out.write(BSON.B_GENERAL);
+				out.write(buffer.array(), 0, buffer.size());
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Replace all segments of the given type for a document with one bulk operation.
+	 * Segments get deterministic ids derived from parent id, segment type and position,
+	 * so they are upserted in place when a document is processed again,
+	 * and left-over segments from previous runs are removed.
+	 * @param segColl the segment collection
+	 * @param documentId id of the parent document
+	 * @param segmentType type of the segments (segmentType field)
+	 * @param segments the segments, in document order (_id is set here)
+	 */
+	protected void writeSegments(DBCollection segColl, String documentId, String segmentType, List<DBObject> segments) {
+		UUID parentId = UUID.fromString(documentId);
+		BasicDBList ids = new BasicDBList();
+		BulkWriteOperation bulk = segColl.initializeUnorderedBulkOperation();
+		for (int i = 0; i < segments.size(); i++) {
+			UUID id = UUID.nameUUIDFromBytes((documentId+"/"+segmentType+"/"+i).getBytes(StandardCharsets.UTF_8));
+			DBObject segment = segments.get(i);
+			segment.put("_id", id);
+			ids.add(id);
+			bulk.find(new BasicDBObject("_id", id)).upsert().replaceOne(segment);
+		}
+		// remove stale segments (e.g. when the document got shorter)
+		bulk.find(new BasicDBObject("parent_id", parentId)
+				.append("segmentType", segmentType)
+				.append("_id", new BasicDBObject("$nin", ids))).remove();
+		try {
+			bulk.execute();
+		} catch (MongoException e) {
+			logger.severe("could not write segments of document "+documentId+": "+e.toString());
+		}
+	}
+
+	/**
+	 * @return number of document updates that couldn't be written
+	 */
+	public long getFailedUpdates() {
+		return this.failedUpdates.get();
+	}
+
+	/**
+	 * write all buffered updates and wait until they are stored.
+	 * The updates are written by the writer thread, after any bulk it is running,
+	 * so that all bulks (including periodic flushes) are done when this returns.
+	 */
+	protected void flush() {
+		if (this.writer == null) {
+			return;
+		}
+		waitForInFlight();
+		this.inFlight = this.writer.submit(new Runnable() {
+			public void run() {
+				List<PendingUpdate> updates = takeBuffer();
+				if (!updates.isEmpty()) {
+					executeBulk(updates);
+				}
+			}
+		});
+		waitForInFlight();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.uima.analysis_component.AnalysisComponent_ImplBase#collectionProcessComplete()
+	 */
+	@Override
+	public void collectionProcessComplete() throws AnalysisEngineProcessException {
+		if (this.coalescer != null) { // write whatever is left, even if some consumer missed it
+			submitMerged(this.coalescer.drain(this.coll.getFullName()));
+		}
+		shutdownWriter();
+		if (this.failedUpdates.get() > 0) {
+			logger.warning(this.failedUpdates.get()+" document updates failed");
+		}
+		super.collectionProcessComplete();
+	}
+
+	/**
+	 * write all buffered updates and stop the writer thread
+	 */
+	private void shutdownWriter() {
+		if (this.writer == null) {
+			return;
+		}
+		flush();
+		this.writer.shutdown();
+		try { // the client may be released right after this
+			if (!this.writer.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				logger.severe("writer thread of "+this.queueName+" did not finish within "
+						+SHUTDOWN_TIMEOUT_SECONDS+"s, updates may be lost");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.writer = null;
+	}
+
+	/**
+	 * Acknowledge a successfully stored document to the reader's checkpoint (if configured)
+	 * @param documentId id of the document, as found in SourceMeta
+	 */
+	protected void acknowledge(String documentId) {
+		if (!this.checkpointName.isEmpty()) {
+			Checkpoint.acknowledge(this.checkpointName, documentId);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.apache.uima.analysis_component.AnalysisComponent_ImplBase#destroy()
+	 */
+	@Override
+	public void destroy() {
+		// collectionProcessComplete isn't called if the pipeline failed, don't lose buffered updates
+		shutdownWriter();
+		if (this.mongoClient != null) {
+			SharedMongoClients.release(this.mongoUri);
+			this.mongoClient = null;
+		}
+		super.destroy();
 	}
 
 	static protected boolean isNull(Object... objects) {
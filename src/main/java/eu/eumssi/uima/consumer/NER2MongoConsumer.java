@@ -10,7 +10,6 @@ import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.UUID;
 import java.util.logging.Logger;
 
 import org.apache.uima.UimaContext;
@@ -99,19 +98,12 @@ public class NER2MongoConsumer extends MongoConsumerBase {
 		NEs.append("ner", entities);
 
 		/* write to MongoDB */
-		BasicDBObject query = new BasicDBObject();
-		query.append("_id", UUID.fromString(meta.getDocumentId()));
 		BasicDBObject updates = new BasicDBObject();
 		updates.append(this.outputField, NEs);
 		BasicDBObject update = new BasicDBObject();
 		update.append("$set", updates);
 		update.append("$addToSet", new BasicDBObject("processing.available_data", this.queueName));
-		try {
-			this.coll.update(query, update);
-		} catch (Exception e) {
-			logger.severe(e.toString());
-			logger.severe(this.coll.findOne(new BasicDBObject("_id", UUID.fromString(meta.getDocumentId()))).toString());
-		}
+		submitUpdate(meta.getDocumentId(), update);
 	}
 
 
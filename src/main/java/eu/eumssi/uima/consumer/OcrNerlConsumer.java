@@ -9,7 +9,6 @@ import static org.apache.uima.fit.util.JCasUtil.selectSingle;
 
 import java.io.IOException;
 import java.net.UnknownHostException;
-import java.util.UUID;
 import java.util.logging.Logger;
 
 import org.apache.uima.UimaContext;
@@ -101,19 +100,12 @@ public class OcrNerlConsumer extends MongoConsumerBase {
 		}
 
 		/* write to MongoDB */
-		BasicDBObject query = new BasicDBObject();
-		query.append("_id", UUID.fromString(meta.getDocumentId()));
 		BasicDBObject updates = new BasicDBObject();
 		updates.append(this.outputField, ocrNerlDbList);
 		BasicDBObject update = new BasicDBObject();
 		update.append("$set", updates);
 		update.append("$addToSet", new BasicDBObject("processing.available_data", this.queueName));
-		try {
-			this.coll.update(query, update);
-		} catch (Exception e) {
-			logger.severe(e.toString());
-			logger.severe(this.coll.findOne(new BasicDBObject("_id", UUID.fromString(meta.getDocumentId()))).toString());
-		}
+		submitUpdate(meta.getDocumentId(), update);
 	}
 
 
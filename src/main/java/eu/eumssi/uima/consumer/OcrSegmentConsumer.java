@@ -24,6 +24,7 @@ import org.xml.sax.SAXException;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 
 import eu.eumssi.uima.ts.OcrSegment;
 import eu.eumssi.uima.ts.SourceMeta;
@@ -71,6 +72,7 @@ public class OcrSegmentConsumer extends MongoConsumerBase {
 		String text = "";
 		int beginOffset = 0;
 		int endOffset = 0;
+		List<DBObject> segments = new ArrayList<DBObject>();
 		for (OcrSegment ocrSegment : select(jCAS, TopOcrSegment.class)) {
 			logger.fine(String.format("  %-16s\t%-16s\t%-10d\t%-10d\t%-10d\t%-10d\t\n", 
 					ocrSegment.getCoveredText(),
@@ -85,8 +87,6 @@ public class OcrSegmentConsumer extends MongoConsumerBase {
 			}
 			endOffset = ocrSegment.getEndTime();
 			BasicDBObject ocrSegmentDbObject = new BasicDBObject();
-			// TODO: use timestamp based UUID for better performance
-			ocrSegmentDbObject.append("_id", UUID.randomUUID());
 			ocrSegmentDbObject.append("parent_id", UUID.fromString(meta.getDocumentId()));
 			ocrSegmentDbObject.append("meta",
 					new BasicDBObject("extracted",
@@ -97,24 +97,14 @@ public class OcrSegmentConsumer extends MongoConsumerBase {
 			ocrSegmentDbObject.append("beginOffset", beginOffset);
 			ocrSegmentDbObject.append("endOffset", endOffset);
 			ocrSegmentDbObject.append("segmentType", "OcrSegment");
-			try {
-				this.segColl.insert(ocrSegmentDbObject);
-			} catch (Exception e) {
-				logger.severe(e.toString());
-			}
+			segments.add(ocrSegmentDbObject);
 		}
+		writeSegments(this.segColl, meta.getDocumentId(), "OcrSegment", segments);
 
 		/* write to MongoDB */
-		BasicDBObject query = new BasicDBObject();
-		query.append("_id", UUID.fromString(meta.getDocumentId()));
 		BasicDBObject update = new BasicDBObject();
 		update.append("$addToSet", new BasicDBObject("processing.available_data", this.queueName));
-		try {
-			this.coll.update(query, update);
-		} catch (Exception e) {
-			logger.severe(e.toString());
-			logger.severe(this.coll.findOne(new BasicDBObject("_id", UUID.fromString(meta.getDocumentId()))).toString());
-		}
+		submitUpdate(meta.getDocumentId(), update);
 
 	}
 
@@ -7,7 +7,6 @@ import static org.apache.uima.fit.util.JCasUtil.select;
 import static org.apache.uima.fit.util.JCasUtil.selectSingle;
 
 import java.io.IOException;
-import java.util.UUID;
 import java.util.logging.Logger;
 
 import org.apache.uima.UimaContext;
@@ -61,20 +60,13 @@ public class Polar2MongoConsumer extends MongoConsumerBase {
 		BasicDBObject polObject = new BasicDBObject();
 		polObject.append("discrete", finalPolDiscrete);
 		polObject.append("numeric", finalPol);
-		BasicDBObject query = new BasicDBObject();
-		query.append("_id", UUID.fromString(meta.getDocumentId()));
 		BasicDBObject updates = new BasicDBObject();
 		updates.append(this.outputField, polObject);
 		updates.append("processing.queues."+this.queueName, "processed");
 		BasicDBObject update = new BasicDBObject();
 		update.append("$set", updates);
 		update.append("$addToSet", new BasicDBObject("processing.available_data", this.queueName));
-		try {
-			this.coll.update(query, update);
-		} catch (Exception e) {
-			logger.severe(e.toString());
-			logger.severe(this.coll.findOne(new BasicDBObject("_id", UUID.fromString(meta.getDocumentId()))).toString());
-		}
+		submitUpdate(meta.getDocumentId(), update);
 	}
 
 
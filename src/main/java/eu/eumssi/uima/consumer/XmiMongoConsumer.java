@@ -6,36 +6,65 @@ package eu.eumssi.uima.consumer;
 import static de.tudarmstadt.ukp.dkpro.core.api.resources.CompressionMethod.BZIP2;
 import static de.tudarmstadt.ukp.dkpro.core.api.resources.CompressionMethod.GZIP;
 import static de.tudarmstadt.ukp.dkpro.core.api.resources.CompressionMethod.XZ;
-import static org.apache.commons.io.IOUtils.closeQuietly;
 import static org.apache.uima.fit.util.JCasUtil.selectSingle;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
 
 import javax.print.attribute.standard.Compression;
 
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
-import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
 import org.apache.uima.UimaContext;
 import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.Serialization;
 import org.apache.uima.cas.impl.XmiCasSerializer;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
 import org.apache.uima.fit.factory.AnalysisEngineFactory;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.metadata.FeatureDescription;
+import org.apache.uima.resource.metadata.TypeDescription;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.apache.uima.util.TypeSystemUtil;
+import org.apache.uima.util.XMLSerializer;
+import org.bson.types.ObjectId;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSInputFile;
 
 import de.tudarmstadt.ukp.dkpro.core.api.resources.CompressionMethod;
+import eu.eumssi.uima.codec.BufferPool;
+import eu.eumssi.uima.codec.CasCodec;
+import eu.eumssi.uima.codec.CasCodecs;
+import eu.eumssi.uima.reader.util.CasBase;
+import eu.eumssi.uima.reader.util.StoredTypeSystems;
+import eu.eumssi.uima.reader.util.XmiFilter;
 import eu.eumssi.uima.ts.SourceMeta;
 
 /**
- * Write CAS in XMI format to MongoDB, with optional compression.
+ * Write CAS in XMI format (or UIMA compressed binary format) to MongoDB, with optional compression.
+ * With {@link #PARAM_DELTA}, only the annotations added since the CAS was loaded by
+ * XmiMongoReader are stored, together with the list of fields they are based on.
+ * CASes larger than {@link #PARAM_SPILL_THRESHOLD} are streamed to GridFS,
+ * and the document only keeps the id of the file.
+ * Types, features and views that are not needed downstream can be left out,
+ * such partial CASes are loaded leniently by XmiMongoReader. In binary format only types and
+ * features can be left out, the reduced type system is stored in GridFS for the reader.
  * @author jgrivolla
  *
  */
@@ -53,6 +82,110 @@ public class XmiMongoConsumer extends MongoConsumerBase {
 	@ConfigurationParameter(name=PARAM_COMPRESSION, mandatory=false, defaultValue="NONE")
 	private CompressionMethod compression;
 
+	/**
+	 * Serialization format: XMI or BINARY (UIMA compressed binary form 6)
+	 */
+	public static final String PARAM_FORMAT = "format";
+	public static final String FORMAT_XMI = "XMI";
+	public static final String FORMAT_BINARY = "BINARY";
+	@ConfigurationParameter(name=PARAM_FORMAT, mandatory=false, defaultValue=FORMAT_XMI,
+			description="serialization format: XMI or BINARY (UIMA compressed binary form 6, stored under bin6<ext>)")
+	private String format;
+
+	/**
+	 * Compression codec (none, gzip, bzip2, xz, lz4, zstd or a plugged-in one).
+	 * If set, the CAS is stored with a codec header under xmi_z / bin6_z and
+	 * {@link #PARAM_COMPRESSION} is ignored.
+	 * @see CasCodecs
+	 */
+	public static final String PARAM_CODEC = "codec";
+	@ConfigurationParameter(name=PARAM_CODEC, mandatory=false,
+			description="compression codec (none, gzip, bzip2, xz, lz4, zstd); overrides compression if set")
+	private String codecName;
+	private CasCodec codec = null;
+
+	/**
+	 * Compression level for {@link #PARAM_CODEC} (negative = codec default)
+	 */
+	public static final String PARAM_CODEC_LEVEL = "codecLevel";
+	@ConfigurationParameter(name=PARAM_CODEC_LEVEL, mandatory=false, defaultValue="-1",
+			description="compression level for the codec (negative = codec default)")
+	private Integer codecLevel;
+
+	/**
+	 * Only store the changes relative to the fields the CAS was loaded from by XmiMongoReader
+	 * (XMI format only, a complete CAS is stored if there is no such base)
+	 * @see CasBase
+	 */
+	public static final String PARAM_DELTA = "delta";
+	@ConfigurationParameter(name=PARAM_DELTA, mandatory=false, defaultValue="false",
+			description="only store the changes relative to the CAS loaded by XmiMongoReader (XMI format only)")
+	private Boolean delta;
+
+	/**
+	 * Serialized CASes larger than this (in bytes, after compression) are stored in GridFS
+	 * instead of inline, to stay below the BSON document limit (0 = always inline)
+	 */
+	public static final String PARAM_SPILL_THRESHOLD = "spillThreshold";
+	@ConfigurationParameter(name=PARAM_SPILL_THRESHOLD, mandatory=false, defaultValue="8388608",
+			description="serialized CASes larger than this (in bytes) are stored in GridFS (0 = always inline)")
+	private Integer spillThreshold;
+
+	/**
+	 * GridFS bucket for CASes exceeding {@link #PARAM_SPILL_THRESHOLD}
+	 */
+	public static final String PARAM_GRIDFS_BUCKET = "gridFSBucket";
+	@ConfigurationParameter(name=PARAM_GRIDFS_BUCKET, mandatory=false, defaultValue="cas",
+			description="GridFS bucket for CASes exceeding the spill threshold")
+	private String gridFSBucket;
+	private GridFS gridFS;
+
+	/**
+	 * Only store feature structures of these types and their subtypes, comma separated
+	 */
+	public static final String PARAM_INCLUDE_TYPES = "includeTypes";
+	@ConfigurationParameter(name=PARAM_INCLUDE_TYPES, mandatory=false,
+			description="only store feature structures of these types and their subtypes, comma separated")
+	private String includeTypes;
+
+	/**
+	 * Don't store feature structures of these types and their subtypes, comma separated
+	 */
+	public static final String PARAM_EXCLUDE_TYPES = "excludeTypes";
+	@ConfigurationParameter(name=PARAM_EXCLUDE_TYPES, mandatory=false,
+			description="don't store feature structures of these types and their subtypes, comma separated")
+	private String excludeTypes;
+
+	/**
+	 * Don't store these features, as type:feature, comma separated
+	 */
+	public static final String PARAM_EXCLUDE_FEATURES = "excludeFeatures";
+	@ConfigurationParameter(name=PARAM_EXCLUDE_FEATURES, mandatory=false,
+			description="don't store these features (type:feature), comma separated")
+	private String excludeFeatures;
+
+	/**
+	 * Only store these views, comma separated (XMI format only)
+	 */
+	public static final String PARAM_INCLUDE_VIEWS = "includeViews";
+	@ConfigurationParameter(name=PARAM_INCLUDE_VIEWS, mandatory=false,
+			description="only store these views, comma separated (XMI only)")
+	private String includeViews;
+
+	/**
+	 * Don't store these views, comma separated (XMI format only)
+	 */
+	public static final String PARAM_EXCLUDE_VIEWS = "excludeViews";
+	@ConfigurationParameter(name=PARAM_EXCLUDE_VIEWS, mandatory=false,
+			description="don't store these views, comma separated (XMI only)")
+	private String excludeViews;
+
+	/** type system restricted to the stored types and features, for the type system it was created from */
+	private TypeSystem targetTypeSystem = null;
+	private TypeSystem sourceTypeSystem = null;
+	/** id of the stored target type system (only stored for binary format) */
+	private String targetTypeSystemId = null;
+
 
 	public void initialize(UimaContext context) throws ResourceInitializationException {
 		super.initialize(context);
@@ -61,11 +194,270 @@ public class XmiMongoConsumer extends MongoConsumerBase {
 		} else {
 			this.outputField = this.outputFieldParam;
 		}
+		if (!isNull(this.codecName)) {
+			try {
+				this.codec = CasCodecs.forName(this.codecName);
+			} catch (IllegalArgumentException e) {
+				throw new ResourceInitializationException(e);
+			}
+		}
+		this.gridFS = new GridFS(this.db, this.gridFSBucket);
+		loadSpilledFiles();
+		if (FORMAT_BINARY.equals(this.format) && !(isNull(this.includeViews) && isNull(this.excludeViews))) {
+			logger.warning("view filters are ignored in binary format");
+		}
+	}
+
+
+	/**
+	 * Find the documents whose CAS in the output field was spilled to GridFS by a previous run,
+	 * so that only their old files need to be looked for and removed.
+	 * (Files spilled meanwhile by other workers writing the same documents are not seen.)
+	 */
+	private void loadSpilledFiles() {
+		DBObject query = new BasicDBObject("filename", Pattern.compile(Pattern.quote("/"+this.outputField)+"$"));
+		DBCursor files = this.db.getCollection(this.gridFSBucket+".files").find(query, new BasicDBObject("filename", 1));
+		try {
+			while (files.hasNext()) {
+				this.spilledFiles.add((String) files.next().get("filename"));
+			}
+		} finally {
+			files.close();
+		}
+		logger.info(this.spilledFiles.size()+" documents have their CAS in GridFS");
+	}
 
+	/**
+	 * @return whether only part of the CAS is stored
+	 */
+	private boolean isFiltered() {
+		return isTypeFiltered() || (!FORMAT_BINARY.equals(this.format)
+				&& !(isNull(this.includeViews) && isNull(this.excludeViews)));
 	}
 
+	/**
+	 * @return whether types or features are left out
+	 */
+	private boolean isTypeFiltered() {
+		return !(isNull(this.includeTypes) && isNull(this.excludeTypes) && isNull(this.excludeFeatures));
+	}
 
-	/** add compression to output stream (as specified in PARAM_COMPRESSION)
+	/**
+	 * @param jCAS the CAS
+	 * @return the type system to serialize against, null to store all types
+	 * @throws ResourceInitializationException
+	 * @throws SAXException
+	 * @throws IOException
+	 */
+	private TypeSystem getTargetTypeSystem(JCas jCAS) throws ResourceInitializationException, SAXException, IOException {
+		if (!isTypeFiltered()) {
+			return null;
+		}
+		if (this.sourceTypeSystem != jCAS.getTypeSystem()) {
+			TypeSystemDescription tsd = filterTypeSystem(jCAS.getTypeSystem());
+			this.targetTypeSystem = CasCreationUtils.createCas(tsd, null, null).getTypeSystem();
+			this.targetTypeSystemId = FORMAT_BINARY.equals(this.format) ? StoredTypeSystems.store(this.gridFS, tsd) : null;
+			this.sourceTypeSystem = jCAS.getTypeSystem();
+		}
+		return this.targetTypeSystem;
+	}
+
+	/**
+	 * Create the type system to serialize against, leaving out the excluded types and features.
+	 * Supertypes of stored types are kept, features whose range was left out are dropped.
+	 * @param ts the type system of the CAS
+	 * @return the restricted type system
+	 */
+	private TypeSystemDescription filterTypeSystem(TypeSystem ts) {
+		XmiFilter selector = new XmiFilter(null, null,
+				XmiFilter.split(this.includeTypes), XmiFilter.split(this.excludeTypes), ts);
+		List<String> prunedFeatures = XmiFilter.split(this.excludeFeatures);
+		TypeSystemDescription tsd = TypeSystemUtil.typeSystem2TypeSystemDescription(ts);
+		Set<String> described = new HashSet<String>();
+		Set<String> kept = new HashSet<String>();
+		for (TypeDescription td : tsd.getTypes()) {
+			described.add(td.getName());
+			if (selector.isTypeSelected(td.getName())) {
+				for (Type type = ts.getType(td.getName()); type != null; type = ts.getParent(type)) {
+					kept.add(type.getName());
+				}
+			}
+		}
+		List<TypeDescription> types = new ArrayList<TypeDescription>();
+		for (TypeDescription td : tsd.getTypes()) {
+			if (!kept.contains(td.getName())) {
+				continue;
+			}
+			List<FeatureDescription> features = new ArrayList<FeatureDescription>();
+			for (FeatureDescription fd : td.getFeatures()) {
+				String range = fd.getRangeTypeName();
+				String element = fd.getElementType();
+				if (prunedFeatures.contains(td.getName()+":"+fd.getName())
+						|| (described.contains(range) && !kept.contains(range))
+						|| (element != null && described.contains(element) && !kept.contains(element))) {
+					continue;
+				}
+				features.add(fd);
+			}
+			td.setFeatures(features.toArray(new FeatureDescription[features.size()]));
+			types.add(td);
+		}
+		tsd.setTypes(types.toArray(new TypeDescription[types.size()]));
+		logger.info("storing "+types.size()+" of "+described.size()+" types");
+		return tsd;
+	}
+
+	/**
+	 * Serialize the CAS as XMI, leaving out the excluded types, features and views
+	 * @param jCAS the CAS
+	 * @param os where to write the XMI
+	 * @param base the base for delta serialization, or null
+	 * @throws SAXException
+	 * @throws ResourceInitializationException
+	 * @throws IOException
+	 */
+	private void serializeXmi(JCas jCAS, OutputStream os, CasBase base) throws SAXException, ResourceInitializationException, IOException {
+		TypeSystem targetTypeSystem = getTargetTypeSystem(jCAS);
+		ContentHandler handler = new XMLSerializer(os, false).getContentHandler();
+		XmiFilter viewFilter = new XmiFilter(XmiFilter.split(this.includeViews), XmiFilter.split(this.excludeViews),
+				null, null, null);
+		if (viewFilter.isActive()) {
+			viewFilter.setContentHandler(handler);
+			handler = viewFilter;
+		}
+		new XmiCasSerializer(targetTypeSystem).serialize(jCAS.getCas(), handler, null,
+				base == null ? null : base.getSharedData(), base == null ? null : base.getMarker());
+	}
+
+
+	/** names of the GridFS files holding CASes of this output field */
+	private final Set<String> spilledFiles = new HashSet<String>();
+
+	/** the stream is reused for all documents, as each consumer instance only runs on one thread at a time */
+	private final SpillingOutputStream spill = new SpillingOutputStream();
+
+	/**
+	 * Buffers the serialized CAS in a pooled buffer, and moves it to a GridFS file
+	 * as soon as it exceeds the spill threshold.
+	 * The buffer is handed over with the update and released once it is written.
+	 */
+	private class SpillingOutputStream extends OutputStream {
+		private String filename;
+		private BufferPool.Buffer buffer = null;
+		private GridFSInputFile file = null;
+		private OutputStream out = null;
+
+		/**
+		 * start a new CAS
+		 * @param filename name of the GridFS file, if needed
+		 */
+		void reset(String filename) {
+			this.filename = filename;
+			this.buffer = BufferPool.take();
+			this.file = null;
+			this.out = this.buffer;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			checkSize();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			checkSize();
+		}
+
+		private void checkSize() throws IOException {
+			if (this.file == null && spillThreshold > 0 && this.buffer.size() > spillThreshold) {
+				this.file = gridFS.createFile(this.filename);
+				this.out = this.file.getOutputStream();
+				this.buffer.writeTo(this.out);
+				this.buffer.release();
+				this.buffer = null;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.out.flush();
+		}
+
+		/**
+		 * finish writing (saves the GridFS file if the CAS was spilled)
+		 */
+		@Override
+		public void close() throws IOException {
+			this.out.close();
+		}
+
+		/**
+		 * Hand over the CAS, the buffer is released after the update has been written
+		 * @param string whether uncompressed XMI is stored as String
+		 * @return value to store in the document: the buffer holding the CAS, or the id of the GridFS file
+		 */
+		Object getValue(boolean string) {
+			if (this.file != null) {
+				return this.file.getId();
+			}
+			BufferPool.Buffer value = this.buffer.setText(string);
+			this.buffer = null;
+			return value;
+		}
+
+		/**
+		 * give up on the current CAS after a failure, removing what was already written to GridFS
+		 */
+		void discard() {
+			if (this.buffer != null) {
+				this.buffer.release();
+				this.buffer = null;
+			}
+			if (this.file != null) {
+				try {
+					gridFS.remove((ObjectId) this.file.getId());
+				} catch (MongoException e) {
+					logger.warning("could not remove partial GridFS file "+this.filename+": "+e.toString());
+				}
+				this.file = null;
+			}
+		}
+
+		/**
+		 * @return whether the CAS was spilled to GridFS
+		 */
+		boolean isSpilled() {
+			return this.file != null;
+		}
+
+		/**
+		 * @return number of bytes stored in the document itself (0 if spilled to GridFS)
+		 */
+		long size() {
+			return this.file != null ? 0 : this.buffer.size();
+		}
+
+		/**
+		 * @return action removing the GridFS files left from previous runs for the same document and field,
+		 * to be run once the document refers to the new CAS
+		 */
+		Runnable staleFileRemover() {
+			final BasicDBObject stale = new BasicDBObject("filename", this.filename);
+			if (this.file != null) {
+				stale.append("_id", new BasicDBObject("$ne", this.file.getId()));
+			}
+			return new Runnable() {
+				public void run() {
+					gridFS.remove(stale);
+				}
+			};
+		}
+	}
+
+
+	/** add compression to output stream (as specified in PARAM_CODEC or PARAM_COMPRESSION)
 	 * @param os the original output stream
 	 * @return possibly compressed output stream 
 	 * @throws IOException
@@ -73,19 +465,33 @@ public class XmiMongoConsumer extends MongoConsumerBase {
 	 */
 	private OutputStream getOutputStream(OutputStream os) throws IOException
 	{
+		if (this.codec != null) {
+			return CasCodecs.compress(os, this.codec, this.codecLevel);
+		}
 		if (this.compression.equals(GZIP)) {
-			os = new GZIPOutputStream(os);
+			os = CasCodecs.forName("gzip").compress(os, -1); // same format, but with a reusable deflater
 		}
 		else if (this.compression.equals(BZIP2)) {
 			os = new BZip2CompressorOutputStream(os);
 		}
 		else if (this.compression.equals(XZ)) {
-			os = new XZCompressorOutputStream(os);
+			os = CasCodecs.forName("xz").compress(os, -1); // same format, reusing the dictionary memory
 		}
 		return os;
 	}
 
 
+	/**
+	 * @return suffix of the field name indicating the compression
+	 */
+	private String getFieldSuffix() {
+		if (this.codec != null) {
+			return CasCodecs.FIELD_SUFFIX;
+		}
+		return this.compression.getExtension().replace(".", "_");
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.apache.uima.analysis_component.CasAnnotator_ImplBase#process(org.apache.uima.cas.CAS)
 	 */
@@ -96,20 +502,33 @@ public class XmiMongoConsumer extends MongoConsumerBase {
 		logger.fine("\n\n=========\n\n" + meta.getDocumentId() + ": " + documentText + "\n");
 
 		/* write to MongoDB */
-		BasicDBObject query = new BasicDBObject();
-		query.append("_id", UUID.fromString(meta.getDocumentId()));
 		BasicDBObject updates = new BasicDBObject();
+		SpillingOutputStream spill = this.spill;
+		String filename = meta.getDocumentId()+"/"+this.outputField;
+		spill.reset(filename);
 		try {
-			ByteArrayOutputStream xmi_baos = new ByteArrayOutputStream();
-			OutputStream xmi_os = getOutputStream(xmi_baos);
-			XmiCasSerializer.serialize(jCAS.getCas(), xmi_os);
-			BasicDBObject xmiObj;
-			closeQuietly(xmi_os); // make sure it's fully flushed
-			String fieldName = "xmi" + this.compression.getExtension().replace(".", "_");
-			if (this.compression.equals(CompressionMethod.NONE)) {
-				xmiObj = new BasicDBObject(fieldName, xmi_baos.toString("UTF-8"));
+			OutputStream xmi_os = getOutputStream(spill);
+			boolean binary = FORMAT_BINARY.equals(this.format);
+			CasBase base = (this.delta && !binary) ? CasBase.get(jCAS.getCas()) : null;
+			if (binary) { // the reader needs the target type system to deserialize
+				Serialization.serializeWithCompression(jCAS.getCas(), xmi_os, getTargetTypeSystem(jCAS));
 			} else {
-				xmiObj = new BasicDBObject(fieldName, xmi_baos.toByteArray());
+				serializeXmi(jCAS, xmi_os, base);
+			}
+			xmi_os.close(); // make sure it's fully flushed (and spilled to GridFS if needed)
+			String fieldName = (binary ? "bin6" : "xmi") + getFieldSuffix();
+			boolean string = this.codec == null && this.compression.equals(CompressionMethod.NONE) && !binary;
+			long size = spill.size();
+			BasicDBObject xmiObj = new BasicDBObject(fieldName, spill.getValue(string));
+			if (base != null) {
+				xmiObj.append(CasBase.FIELD_BASE, base.getFields());
+				xmiObj.append(CasBase.FIELD_MERGEPOINT, base.getMergePoint());
+			}
+			if (isFiltered()) {
+				xmiObj.append(XmiFilter.FIELD_PARTIAL, true);
+			}
+			if (binary && this.targetTypeSystemId != null) {
+				xmiObj.append(StoredTypeSystems.FIELD_TYPESYSTEM, this.targetTypeSystemId);
 			}
 			updates.append(this.outputField, xmiObj);
 			updates.append("processing.queues."+this.queueName,"processed");
@@ -117,11 +536,17 @@ public class XmiMongoConsumer extends MongoConsumerBase {
 			update.append("$set", updates);
 			//update.append("$addToSet", new BasicDBObject("processing.available_data", this.queueName));
 			//update.append("$set", new BasicDBObject("processing.queues."+this.queueName,"processed"));
-			this.coll.update(query, update);
-			closeQuietly(xmi_baos);
-		} catch (Exception e) {
-			logger.severe(e.toString());
-			logger.severe(this.coll.findOne(new BasicDBObject("_id", UUID.fromString(meta.getDocumentId()))).toString());
+			// old GridFS files are only removed once the document no longer refers to them
+			boolean spilledBefore = this.spilledFiles.remove(filename);
+			if (spill.isSpilled()) {
+				this.spilledFiles.add(filename);
+			}
+			submitUpdate(meta.getDocumentId(), update, size, spilledBefore ? spill.staleFileRemover() : null);
+		} catch (IOException | SAXException | ResourceInitializationException | MongoException e) {
+			spill.discard();
+			skipUpdate(meta.getDocumentId()); // don't keep the other consumers' updates waiting
+			logger.severe("could not store CAS of document "+meta.getDocumentId()+": "+e.toString());
+			throw new AnalysisEngineProcessException(e);
 		}
 	}
 
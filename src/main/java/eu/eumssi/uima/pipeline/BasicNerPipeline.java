@@ -0,0 +1,73 @@
+package eu.eumssi.uima.pipeline;
+
+import static org.apache.uima.fit.factory.AnalysisEngineFactory.createEngineDescription;
+import static org.apache.uima.fit.factory.CollectionReaderFactory.createReaderDescription;
+
+import java.io.IOException;
+
+import org.apache.uima.UIMAException;
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.collection.CollectionReaderDescription;
+import org.apache.uima.util.XMLInputSource;
+
+import eu.eumssi.uima.consumer.MongoConsumerBase;
+import eu.eumssi.uima.consumer.NER2MongoConsumer;
+import eu.eumssi.uima.reader.BaseCasReader;
+import eu.eumssi.uima.reader.MongoReaderBase;
+
+/**
+ * Run a NER analysis engine (given as XML descriptor) on text fields from MongoDB
+ * and store the results with {@link NER2MongoConsumer}, using all cores of the machine.
+ * <p>
+ * Usage: BasicNerPipeline &lt;analysisEngine.xml&gt; [threads] [casPoolSize]
+ * <p>
+ * MongoDB access is configured with system properties:
+ * eumssi.mongoUri, eumssi.mongoDb, eumssi.collection, eumssi.queue, eumssi.query,
+ * eumssi.fields and eumssi.maxItems.
+ * @author jgrivolla
+ *
+ */
+public class BasicNerPipeline {
+
+	public static void main(String[] args) throws UIMAException, IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: BasicNerPipeline <analysisEngine.xml> [threads] [casPoolSize]");
+			System.exit(1);
+		}
+		String mongoUri = System.getProperty("eumssi.mongoUri", "mongodb://localhost");
+		String mongoDb = System.getProperty("eumssi.mongoDb", "eumssi_db");
+		String collection = System.getProperty("eumssi.collection", "content_items");
+		String queue = System.getProperty("eumssi.queue", "ner");
+		String query = System.getProperty("eumssi.query",
+				"{\"processing.queues." + queue + "\": \"pending\"}");
+		String fields = System.getProperty("eumssi.fields", "meta.source.text");
+		String maxItems = System.getProperty("eumssi.maxItems", String.valueOf(Integer.MAX_VALUE));
+
+		CollectionReaderDescription reader = createReaderDescription(BaseCasReader.class,
+				MongoReaderBase.PARAM_MONGOURI, mongoUri,
+				MongoReaderBase.PARAM_MONGODB, mongoDb,
+				MongoReaderBase.PARAM_MONGOCOLLECTION, collection,
+				MongoReaderBase.PARAM_QUERY, query,
+				MongoReaderBase.PARAM_FIELDS, fields,
+				MongoReaderBase.PARAM_MAXITEMS, Integer.parseInt(maxItems));
+
+		AnalysisEngineDescription ner = UIMAFramework.getXMLParser()
+				.parseAnalysisEngineDescription(new XMLInputSource(args[0]));
+		AnalysisEngineDescription consumer = createEngineDescription(NER2MongoConsumer.class,
+				MongoConsumerBase.PARAM_MONGOURI, mongoUri,
+				MongoConsumerBase.PARAM_MONGODB, mongoDb,
+				MongoConsumerBase.PARAM_MONGOCOLLECTION, collection,
+				MongoConsumerBase.PARAM_QUEUE, queue);
+
+		PipelineRunner runner = new PipelineRunner(reader, createEngineDescription(ner, consumer));
+		if (args.length > 1) {
+			runner.setThreads(Integer.parseInt(args[1]));
+		}
+		if (args.length > 2) {
+			runner.setCasPoolSize(Integer.parseInt(args[2]));
+		}
+		runner.runWithShutdownHook();
+	}
+
+}
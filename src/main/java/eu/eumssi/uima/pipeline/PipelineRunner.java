@@ -0,0 +1,219 @@
+package eu.eumssi.uima.pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+import org.apache.uima.UIMAException;
+import org.apache.uima.analysis_engine.AnalysisEngine;
+import org.apache.uima.analysis_engine.AnalysisEngineDescription;
+import org.apache.uima.analysis_engine.AnalysisEngineProcessException;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.collection.CollectionReader;
+import org.apache.uima.collection.CollectionReaderDescription;
+import org.apache.uima.fit.factory.AnalysisEngineFactory;
+import org.apache.uima.fit.factory.CollectionReaderFactory;
+import org.apache.uima.resource.metadata.ResourceMetaData;
+import org.apache.uima.util.CasCreationUtils;
+
+/**
+ * Runs a collection reader and an analysis engine (typically an aggregate ending in
+ * MongoConsumerBase consumers) with several processing units in parallel.
+ * The reader fills CASes from a fixed-size pool on the calling thread, each processing unit
+ * runs its own instance of the analysis engine on a separate thread.
+ * {@link #shutdown()} stops reading and waits until all CASes that were already read are processed.
+ * @author jgrivolla
+ *
+ */
+public class PipelineRunner {
+
+	private static final Logger logger = Logger.getLogger(PipelineRunner.class.toString());
+
+	/** marks the end of the collection in the work queue */
+	private static final Object END = new Object();
+
+	private final CollectionReaderDescription readerDesc;
+	private final AnalysisEngineDescription engineDesc;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int casPoolSize = 0;
+
+	private volatile boolean stopped = false;
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	/**
+	 * @param readerDesc the collection reader
+	 * @param engineDesc the analysis engine (one instance is created per processing unit)
+	 */
+	public PipelineRunner(CollectionReaderDescription readerDesc, AnalysisEngineDescription engineDesc) {
+		this.readerDesc = readerDesc;
+		this.engineDesc = engineDesc;
+	}
+
+	/**
+	 * @param threads number of parallel processing units (default: number of cores)
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(threads, 1);
+	}
+
+	/**
+	 * @param casPoolSize number of CASes shared between reader and processing units (default: 2 per thread)
+	 */
+	public void setCasPoolSize(int casPoolSize) {
+		this.casPoolSize = casPoolSize;
+	}
+
+	/**
+	 * Process the whole collection (or until {@link #shutdown()} is called)
+	 * @throws UIMAException if reader or engines can't be created or the reader fails
+	 * @throws IOException if the reader fails
+	 */
+	public void run() throws UIMAException, IOException {
+		try {
+			process();
+		} finally {
+			this.finished.countDown();
+		}
+	}
+
+	private void process() throws UIMAException, IOException {
+		CollectionReader reader = CollectionReaderFactory.createReader(this.readerDesc);
+		List<AnalysisEngine> engines = new ArrayList<AnalysisEngine>();
+		for (int i = 0; i < this.threads; i++) {
+			engines.add(AnalysisEngineFactory.createEngine(this.engineDesc));
+		}
+
+		// create the CAS pool
+		int poolSize = this.casPoolSize > 0 ? this.casPoolSize : 2 * this.threads;
+		List<ResourceMetaData> metaData = new ArrayList<ResourceMetaData>();
+		metaData.add(reader.getMetaData());
+		metaData.add(engines.get(0).getMetaData());
+		final BlockingQueue<CAS> casPool = new ArrayBlockingQueue<CAS>(poolSize);
+		for (int i = 0; i < poolSize; i++) {
+			casPool.add(CasCreationUtils.createCas(metaData));
+		}
+		final BlockingQueue<Object> work = new ArrayBlockingQueue<Object>(poolSize + this.threads);
+
+		// start the processing units
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < this.threads; i++) {
+			final AnalysisEngine engine = engines.get(i);
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					processCases(engine, work, casPool);
+				}
+			}, "ProcessingUnit-" + i);
+			workers.add(worker);
+			worker.start();
+		}
+		logger.info("started " + this.threads + " processing units with " + poolSize + " CASes");
+
+		// read documents until done or stopped
+		try {
+			while (!this.stopped && reader.hasNext()) {
+				CAS cas = casPool.take();
+				try {
+					reader.getNext(cas);
+				} catch (UIMAException e) {
+					casPool.add(cas);
+					throw e;
+				} catch (IOException e) {
+					casPool.add(cas);
+					throw e;
+				}
+				work.put(cas);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warning("interrupted, stopping");
+		} finally {
+			// drain: let the processing units finish the CASes already read
+			for (int i = 0; i < workers.size(); i++) {
+				work.add(END);
+			}
+			for (Thread worker : workers) {
+				try {
+					worker.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			for (AnalysisEngine engine : engines) {
+				try {
+					engine.collectionProcessComplete();
+				} catch (AnalysisEngineProcessException e) {
+					logger.severe(e.toString());
+				}
+				engine.destroy();
+			}
+			reader.close();
+			reader.destroy();
+			logger.info("pipeline finished");
+		}
+	}
+
+	/**
+	 * processing unit: run the engine on CASes from the work queue until the end marker is reached
+	 */
+	private static void processCases(AnalysisEngine engine, BlockingQueue<Object> work, BlockingQueue<CAS> casPool) {
+		try {
+			while (true) {
+				Object next = work.take();
+				if (next == END) {
+					return;
+				}
+				CAS cas = (CAS) next;
+				try {
+					engine.process(cas);
+				} catch (AnalysisEngineProcessException | RuntimeException e) {
+					// skip the document, as the CPE does by default
+					logger.severe(e.toString());
+				} finally {
+					cas.reset();
+					casPool.add(cas);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stop reading new documents, and wait until the ones already read are processed
+	 * and all components are closed.
+	 */
+	public void shutdown() {
+		this.stopped = true;
+		try {
+			this.finished.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Run the pipeline, draining it gracefully when the JVM is shut down (e.g. with Ctrl-C)
+	 * @throws UIMAException if reader or engines can't be created or the reader fails
+	 * @throws IOException if the reader fails
+	 */
+	public void runWithShutdownHook() throws UIMAException, IOException {
+		Thread hook = new Thread(new Runnable() {
+			public void run() {
+				logger.info("shutting down, waiting for documents in process");
+				shutdown();
+			}
+		}, "PipelineShutdown");
+		Runtime.getRuntime().addShutdownHook(hook);
+		run();
+		try {
+			Runtime.getRuntime().removeShutdownHook(hook);
+		} catch (IllegalStateException e) {
+			// already shutting down
+		}
+	}
+
+}
@@ -0,0 +1,8 @@
+/**
+ * runners to execute readers, analysis engines and consumers as a pipeline
+ */
+/**
+ * @author jgrivolla
+ *
+ */
+package eu.eumssi.uima.pipeline;
@@ -14,13 +14,13 @@ import org.apache.uima.jcas.JCas;
 import org.apache.uima.resource.ResourceInitializationException;
 import org.xml.sax.SAXException;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 
-import eu.eumssi.uima.reader.util.EumssiMetaLoader;
+import eu.eumssi.uima.reader.util.DocumentBuilder;
 import eu.eumssi.uima.ts.AsrFiller;
 import eu.eumssi.uima.ts.AsrToken;
 import eu.eumssi.uima.ts.AsrWord;
-import eu.eumssi.uima.ts.Segment;
 import eu.eumssi.uima.ts.SourceMeta;
 
 public class AsrReader extends MongoReaderBase {
@@ -39,6 +39,38 @@ public class AsrReader extends MongoReaderBase {
 	private Boolean onlyWords = false;
 
 
+	/**
+	 * token properties used to build the CAS, tokens missing any of them are skipped
+	 */
+	static final String[] TOKEN_FIELDS = {"item", "start", "end", "conf", "type"};
+
+	/**
+	 * Only retrieve the token properties used to build the CAS.
+	 * Fillers can't be filtered out with OnlyWords, as they are still part of the document text.
+	 * @see eu.eumssi.uima.reader.MongoReaderBase#fieldProjection(java.lang.String)
+	 */
+	@Override
+	protected Object fieldProjection(String field) {
+		return tokenProjection(field);
+	}
+
+	/**
+	 * projection of an ASR result field to the token properties used by the readers
+	 * @param field the ASR result field
+	 * @return projection expression
+	 */
+	static DBObject tokenProjection(String field) {
+		DBObject token = new BasicDBObject("item", "$$t.item")
+				.append("start", "$$t.start")
+				.append("end", "$$t.end")
+				.append("conf", "$$t.conf")
+				.append("type", "$$t.type");
+		return new BasicDBObject("content", new BasicDBObject("$map",
+				new BasicDBObject("input", "$"+field+".content")
+				.append("as", "t")
+				.append("in", token)));
+	}
+
 	/* (non-Javadoc)
 	 * @see org.apache.uima.collection.CollectionReader#getNext(org.apache.uima.cas.CAS)
 	 */
@@ -50,73 +82,57 @@ public class AsrReader extends MongoReaderBase {
 		catch(CASException e){
 			throw new CollectionException(e);
 		}
-		DBObject doc = this.resCursor.next();
+		DBObject doc = nextDocument();
 		String documentId = doc.get("id").toString(); // hopefully correct conversion to string
 		logger.fine(documentId);
 
 		// create document text from all available text fields
-		StringBuilder documentText = new StringBuilder();
-		Integer segmentIndex = 0;
-		Integer tokenIndex = 0;
-		for (String f: this.fieldsList) { // just one field normally
-			try {
-				segmentIndex = documentText.length(); // TODO: check for off-by-one
-				if (segmentIndex > 0) {
-					// separate segments with newlines
-					documentText.append("\n\n\n");
-					segmentIndex += 3;
-					tokenIndex += 3;
-				}
-				List<DBObject> tokenList = (List<DBObject>) ((DBObject) doc.get(f.replaceAll("\\.", SEPARATOR))).get("content");
-				for (DBObject token : tokenList) {
-					tokenIndex = documentText.length();
-					String tokenText = token.get("item").toString(); // should be a String field anyway
-					int beginTime = (int) Double.parseDouble(token.get("start").toString())*1000;
-					int endTime = (int) Double.parseDouble(token.get("end").toString())*1000;
-					double conf = Double.parseDouble(token.get("conf").toString());
-					String type = token.get("type").toString();
-					if (tokenIndex > 0) {
-						documentText.append(" ");
-						tokenIndex++;
-					}
-					documentText.append(tokenText);
-					AsrToken tokenAnno;
-					if (type.equals("word")) {
-						tokenAnno = new AsrWord(jcas);
-					} else if (onlyWords) { // don't mark fillers or others
-						continue;
-					} else if (type.equals("filler")) {
-						tokenAnno = new AsrFiller(jcas);
-					} else {
-						tokenAnno = new AsrToken(jcas);
-						logger.info(String.format("unknown token type %s in document %s", type, documentId));
-					}
-					tokenAnno.setBegin(tokenIndex);
-					tokenAnno.setEnd(documentText.length());
-					tokenAnno.setBeginTime(beginTime);
-					tokenAnno.setEndTime(endTime);
-					tokenAnno.setConfidence(conf);
-					tokenAnno.setTokenType(type);
-					tokenAnno.addToIndexes();
+		this.documentBuilder.reset();
+		for (DocumentBuilder.Field f: this.fields) { // just one field normally
+			DBObject asr = (DBObject) f.get(doc);
+			List<DBObject> tokenList = asr == null ? null : (List<DBObject>) asr.get("content");
+			if (tokenList == null) {
+				// just leave text empty if document doesn't have one
+				continue;
+			}
+			// segments are separated with newlines
+			this.documentBuilder.beginSegment();
+			for (DBObject token : tokenList) {
+				if (!DocumentBuilder.hasFields(token, TOKEN_FIELDS)) {
+					logger.fine(String.format("incomplete token %s in document %s", token, documentId));
+					continue;
 				}
-				// create segment annotation
-				Segment segAnno = new Segment(jcas);
-				segAnno.setBegin(segmentIndex);
-				segAnno.setEnd(documentText.length());
-				segAnno.setSourceField(f);
-				try {
-					segAnno.setName(f.split("\\.")[-1]);
-				} catch (Exception e) {
-					segAnno.setName(f);
+				String tokenText = token.get("item").toString(); // should be a String field anyway
+				int beginTime = (int) Double.parseDouble(token.get("start").toString())*1000;
+				int endTime = (int) Double.parseDouble(token.get("end").toString())*1000;
+				double conf = Double.parseDouble(token.get("conf").toString());
+				String type = token.get("type").toString();
+				int tokenIndex = this.documentBuilder.appendToken(tokenText, " ");
+				AsrToken tokenAnno;
+				if (type.equals("word")) {
+					tokenAnno = new AsrWord(jcas);
+				} else if (onlyWords) { // don't mark fillers or others
+					continue;
+				} else if (type.equals("filler")) {
+					tokenAnno = new AsrFiller(jcas);
+				} else {
+					tokenAnno = new AsrToken(jcas);
+					logger.info(String.format("unknown token type %s in document %s", type, documentId));
 				}
-				segAnno.addToIndexes();
-			} catch (NullPointerException e) {
-				// just leave text empty if document doesn't have one
+				tokenAnno.setBegin(tokenIndex);
+				tokenAnno.setEnd(this.documentBuilder.length());
+				tokenAnno.setBeginTime(beginTime);
+				tokenAnno.setEndTime(endTime);
+				tokenAnno.setConfidence(conf);
+				tokenAnno.setTokenType(type);
+				tokenAnno.addToIndexes();
 			}
+			// create segment annotation
+			this.documentBuilder.endSegment(jcas, f);
 		}
-		jcas.setDocumentText(documentText.toString());
+		jcas.setDocumentText(this.documentBuilder.getText());
 		// create metadata annotation
-		SourceMeta metadata = EumssiMetaLoader.getMeta(jcas, doc);
+		SourceMeta metadata = this.metaLoader.getMeta(jcas, doc);
 		metadata.addToIndexes();
 
 
@@ -15,8 +15,7 @@ import org.xml.sax.SAXException;
 
 import com.mongodb.DBObject;
 
-import eu.eumssi.uima.reader.util.EumssiMetaLoader;
-import eu.eumssi.uima.ts.Segment;
+import eu.eumssi.uima.reader.util.DocumentBuilder;
 import eu.eumssi.uima.ts.SourceMeta;
 
 public class BaseCasReader extends MongoReaderBase{
@@ -35,45 +34,27 @@ public class BaseCasReader extends MongoReaderBase{
 		catch(CASException e){
 			throw new CollectionException(e);
 		}
-		DBObject doc = this.resCursor.next();
+		DBObject doc = nextDocument();
 		String documentId = doc.get("id").toString();
 		logger.info(documentId);
 
 		// create document text from all available text fields
-		String documentText = "";
-		Integer textIndex = 0;
-		String segText = "";
-		for (String f: this.fieldsList) {
-			try {
-				if (textIndex > 0) {
-					// separate segments with newlines
-					segText = "\n\n\n";
-					textIndex += 3;
-				} else {
-					segText = "";
-				}
-				segText += doc.get(f.replaceAll("\\.", SEPARATOR)).toString(); // should be a String field anyway
-				documentText += validXmlCharacters(segText);
-				// create segment annotation
-				Segment segAnno = new Segment(jcas);
-				segAnno.setBegin(textIndex);
-				segAnno.setEnd(documentText.length());
-				segAnno.setSourceField(f);
-				try {
-					segAnno.setName(f.split("\\.")[-1]);
-				} catch (Exception e) {
-					segAnno.setName(f);
-				}
-				segAnno.addToIndexes();
-				textIndex = documentText.length(); // TODO: check for off-by-one
-			} catch (NullPointerException e) {
+		this.documentBuilder.reset();
+		for (DocumentBuilder.Field f: this.fields) {
+			Object value = f.get(doc);
+			if (value == null) {
 				// just leave text empty if document doesn't have one
+				continue;
 			}
+			// create segment annotation, segments are separated with newlines
+			this.documentBuilder.beginSegment();
+			this.documentBuilder.append(validXmlCharacters(value.toString())); // should be a String field anyway
+			this.documentBuilder.endSegment(jcas, f);
 		}
-		jcas.setDocumentText(documentText);
+		jcas.setDocumentText(this.documentBuilder.getText());
 
 		// create metadata annotation
-		SourceMeta metadata = EumssiMetaLoader.getMeta(jcas, doc);
+		SourceMeta metadata = this.metaLoader.getMeta(jcas, doc);
 		metadata.addToIndexes();
 
 		this.completed++;
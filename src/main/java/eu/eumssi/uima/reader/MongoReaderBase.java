@@ -1,34 +1,63 @@
 package eu.eumssi.uima.reader;
 
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.Closeable;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
 import java.util.logging.Logger;
 
 import org.apache.uima.UimaContext;
 import org.apache.uima.collection.CollectionException;
 import org.apache.uima.fit.component.CasCollectionReader_ImplBase;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
+import org.apache.uima.fit.descriptor.ExternalResource;
 import org.apache.uima.fit.factory.CollectionReaderFactory;
 import org.apache.uima.resource.ResourceInitializationException;
 import org.apache.uima.util.Progress;
 import org.apache.uima.util.ProgressImpl;
+import org.bson.types.ObjectId;
 import org.xml.sax.SAXException;
 
 import com.mongodb.AggregationOptions;
 import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
 import com.mongodb.CommandFailureException;
+import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
-import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
 import com.mongodb.util.JSON;
 
+import eu.eumssi.uima.reader.util.Checkpoint;
+import eu.eumssi.uima.reader.util.DocumentBuilder;
+import eu.eumssi.uima.reader.util.EumssiMetaLoader;
+import eu.eumssi.uima.reader.util.MergingCursor;
+import eu.eumssi.uima.resource.MongoClientResource;
+import eu.eumssi.uima.resource.SharedMongoClients;
+
 public abstract class MongoReaderBase extends CasCollectionReader_ImplBase{
 
 
@@ -74,6 +103,14 @@ public abstract class MongoReaderBase extends CasCollectionReader_ImplBase{
 			description="result fields in MongoDB (dot notation), comma separated")
 	protected String fieldsString;
 	protected String[] fieldsList;
+	/** result fields with their keys in the projected documents */
+	protected DocumentBuilder.Field[] fields;
+	/** reused to build the document text */
+	protected final DocumentBuilder documentBuilder = new DocumentBuilder();
+	/** loads the standard metadata */
+	protected final EumssiMetaLoader metaLoader = new EumssiMetaLoader(SEPARATOR);
+	/** fields whose presence is reported in the progress */
+	protected final List<DocumentBuilder.Field> countedFields = new ArrayList<DocumentBuilder.Field>();
 	
 	/**
 	 * additional metadata fields in MongoDB (dot notation), comma separated
@@ -100,22 +137,211 @@ public abstract class MongoReaderBase extends CasCollectionReader_ImplBase{
 			description="maximum number of items to retrieve")
 	protected Integer maxItems;
 	
+	/**
+	 * number of _id ranges to read in parallel (1 = single cursor)
+	 */
+	public static final String PARAM_PARTITIONS = "Partitions";
+	@ConfigurationParameter(name=PARAM_PARTITIONS, mandatory=false, defaultValue="1",
+			description="number of _id ranges to read in parallel (1 = single cursor)")
+	protected Integer partitions;
+	
+	/**
+	 * maximum number of documents buffered between partition cursors and the reader
+	 */
+	public static final String PARAM_PARTITION_QUEUESIZE = "PartitionQueueSize";
+	@ConfigurationParameter(name=PARAM_PARTITION_QUEUESIZE, mandatory=false, defaultValue="1000",
+			description="maximum number of documents buffered between partition cursors and the reader")
+	protected Integer partitionQueueSize;
+	
+	/**
+	 * number of documents to prefetch in a background thread (0 = no prefetching)
+	 */
+	public static final String PARAM_PREFETCH = "PrefetchDepth";
+	@ConfigurationParameter(name=PARAM_PREFETCH, mandatory=false, defaultValue="0",
+			description="number of documents to prefetch in a background thread (0 = no prefetching)")
+	protected Integer prefetchDepth;
+	
+	/**
+	 * number of documents retrieved from MongoDB per round-trip
+	 */
+	public static final String PARAM_BATCHSIZE = "BatchSize";
+	@ConfigurationParameter(name=PARAM_BATCHSIZE, mandatory=false, defaultValue="100",
+			description="number of documents retrieved from MongoDB per round-trip")
+	protected Integer batchSize;
+	
+	/**
+	 * queue name for which documents are claimed atomically (empty = no claiming)
+	 */
+	public static final String PARAM_CLAIM_QUEUE = "ClaimQueue";
+	@ConfigurationParameter(name=PARAM_CLAIM_QUEUE, mandatory=false, defaultValue="",
+			description="queue name for which documents are claimed atomically, so that several workers can share a queue (empty = no claiming)")
+	protected String claimQueue;
+	
+	/**
+	 * identifier of this worker when claiming documents
+	 */
+	public static final String PARAM_WORKER_ID = "WorkerId";
+	@ConfigurationParameter(name=PARAM_WORKER_ID, mandatory=false,
+			description="identifier of this worker when claiming documents (default: pid@host)")
+	protected String workerId;
+	
+	/**
+	 * time (in seconds) after which claimed but unprocessed documents can be claimed again
+	 */
+	public static final String PARAM_LEASE_SECONDS = "LeaseSeconds";
+	@ConfigurationParameter(name=PARAM_LEASE_SECONDS, mandatory=false, defaultValue="3600",
+			description="time (in seconds) after which claimed but unprocessed documents can be claimed again")
+	protected Integer leaseSeconds;
+	
+	/**
+	 * number of documents claimed at once
+	 */
+	public static final String PARAM_CLAIM_BATCH = "ClaimBatchSize";
+	@ConfigurationParameter(name=PARAM_CLAIM_BATCH, mandatory=false, defaultValue="100",
+			description="number of documents claimed at once")
+	protected Integer claimBatchSize;
+	
+	/**
+	 * name of the checkpoint to resume from and to update (empty = no checkpointing)
+	 */
+	public static final String PARAM_CHECKPOINT = "CheckpointName";
+	@ConfigurationParameter(name=PARAM_CHECKPOINT, mandatory=false, defaultValue="",
+			description="name of the checkpoint to resume from and to update, needs to be set on the final consumer as well (empty = no checkpointing)")
+	protected String checkpointName;
+	
+	/**
+	 * file to store the checkpoint in (default: store in CheckpointCollection)
+	 */
+	public static final String PARAM_CHECKPOINT_FILE = "CheckpointFile";
+	@ConfigurationParameter(name=PARAM_CHECKPOINT_FILE, mandatory=false,
+			description="file to store the checkpoint in (default: store in CheckpointCollection)")
+	protected String checkpointFile;
+	
+	/**
+	 * MongoDB collection to store the checkpoint in (if no CheckpointFile is given)
+	 */
+	public static final String PARAM_CHECKPOINT_COLLECTION = "CheckpointCollection";
+	@ConfigurationParameter(name=PARAM_CHECKPOINT_COLLECTION, mandatory=false, defaultValue="checkpoints",
+			description="MongoDB collection to store the checkpoint in (if no CheckpointFile is given)")
+	protected String checkpointCollection;
+	
+	/**
+	 * number of consumed documents between checkpoint saves
+	 */
+	public static final String PARAM_CHECKPOINT_INTERVAL = "CheckpointInterval";
+	@ConfigurationParameter(name=PARAM_CHECKPOINT_INTERVAL, mandatory=false, defaultValue="1000",
+			description="number of consumed documents between checkpoint saves")
+	protected Integer checkpointInterval;
+
+	/**
+	 * maximum number of delivered documents waiting for acknowledgement, older ones are skipped
+	 * by the checkpoint and read again when resuming
+	 */
+	public static final String PARAM_CHECKPOINT_WINDOW = "CheckpointWindow";
+	@ConfigurationParameter(name=PARAM_CHECKPOINT_WINDOW, mandatory=false, defaultValue="10000",
+			description="maximum number of delivered documents waiting for acknowledgement, older ones (e.g. failed documents) "
+					+ "are skipped by the checkpoint and read again when resuming")
+	protected Integer checkpointWindow;
+	
+	/**
+	 * use cursors that don't time out on the server (closed explicitly in close())
+	 */
+	public static final String PARAM_NO_CURSOR_TIMEOUT = "NoCursorTimeout";
+	@ConfigurationParameter(name=PARAM_NO_CURSOR_TIMEOUT, mandatory=false, defaultValue="false",
+			description="use cursors that don't time out on the server (requires the Language to be a plain field path like $lang)")
+	protected Boolean noCursorTimeout;
+	
+	/**
+	 * number of times a failed cursor is re-opened before giving up
+	 * (enables {@link #PARAM_INDEX_ORDER} if greater than 0, to resume in the same order)
+	 */
+	public static final String PARAM_CURSOR_RETRIES = "CursorRetries";
+	@ConfigurationParameter(name=PARAM_CURSOR_RETRIES, mandatory=false, defaultValue="3",
+			description="number of times a failed cursor is re-opened (after the last delivered document) before giving up, "
+					+ "enables IndexOrder if greater than 0")
+	protected Integer cursorRetries;
+	
+	/**
+	 * sort by _id before limiting, so that results are streamed in index order
+	 */
+	public static final String PARAM_INDEX_ORDER = "IndexOrder";
+	@ConfigurationParameter(name=PARAM_INDEX_ORDER, mandatory=false, defaultValue="false",
+			description="sort by _id before limiting, so that results are streamed in index order (and MaxItems selects the first documents)")
+	protected Boolean indexOrder;
+	
+	/**
+	 * how to determine the total number of documents for progress reporting
+	 */
+	public static final String PARAM_COUNT = "CountMode";
+	public static final String COUNT_EXACT = "exact";
+	public static final String COUNT_BACKGROUND = "background";
+	public static final String COUNT_ESTIMATED = "estimated";
+	public static final String COUNT_NONE = "none";
+	@ConfigurationParameter(name=PARAM_COUNT, mandatory=false, defaultValue=COUNT_BACKGROUND,
+			description="how to determine the total number of documents: "
+					+ "exact (count before reading), background (count while reading), "
+					+ "estimated (size of the collection) or none")
+	protected String countMode;
+	
+	/**
+	 * let readers restrict the projection of result fields to the parts they need
+	 */
+	public static final String PARAM_PUSHDOWN = "Pushdown";
+	@ConfigurationParameter(name=PARAM_PUSHDOWN, mandatory=false, defaultValue="false",
+			description="let readers restrict the projection of result fields to the parts they need "
+					+ "(uses $map, and $slice for OcrReader, which requires MongoDB 3.2; ignored on older servers)")
+	protected Boolean pushdown;
+	
+	/**
+	 * optional resource configuring the shared MongoClient
+	 */
+	public static final String RES_MONGOCLIENT = "MongoClient";
+	@ExternalResource(key=RES_MONGOCLIENT, mandatory=false,
+			description="optional resource configuring the shared MongoClient (pool size, timeouts, read preference)")
+	protected MongoClientResource mongoClientResource;
+	
 	
 	/**
 	 * separator to convert dot-notation to flat name when projecting MongoDB fields
 	 */
 	protected static final String SEPARATOR = "###";
 
+	/**
+	 * progress unit for the number of documents waiting in the prefetch queue
+	 */
+	public static final String PROGRESS_PREFETCH_QUEUE = "prefetchQueue";
+
+	/**
+	 * progress unit for the time (ms) the reader had to wait for the prefetch queue
+	 */
+	public static final String PROGRESS_PREFETCH_STALL = "prefetchStallMillis";
+
+	/**
+	 * prefix of the progress unit for the presence of a field, followed by the field name
+	 * (completed: documents having the field, total: documents read)
+	 */
+	public static final String PROGRESS_FIELD_PREFIX = "field:";
+
+	/**
+	 * processing state of documents that are claimed by a worker
+	 */
+	public static final String STATE_IN_PROCESS = "in_process";
+
 
 	private MongoClient mongoClient;
-	private DB db;
+	protected DB db;
 	private DBCollection coll;
+	private DBObject projection;
 	protected Iterator<DBObject> resCursor;
+	/** claims documents when {@link #PARAM_CLAIM_QUEUE} is set */
+	private ClaimingCursor claimingCursor = null;
+	private Checkpoint checkpoint = null;
 
 	// current document
 	protected int completed;
-	// total number of documents
-	private long totalDocs;
+	// total number of documents (-1 while unknown)
+	private volatile long totalDocs = -1;
+	private boolean totalApproximate = false;
 
 
 	/**
@@ -134,8 +360,11 @@ public abstract class MongoReaderBase extends CasCollectionReader_ImplBase{
 		logger.info("initialize()...");
 		this.completed = 0;
 		try {
-			MongoClientURI uri = new MongoClientURI(this.mongoUri);
-			this.mongoClient = new MongoClient(uri);
+			if (this.mongoClientResource != null) {
+				this.mongoClient = this.mongoClientResource.acquire(this.mongoUri);
+			} else {
+				this.mongoClient = SharedMongoClients.acquire(this.mongoUri);
+			}
 		} catch (UnknownHostException e) {
 			throw new ResourceInitializationException(e);
 		}
@@ -145,65 +374,801 @@ public abstract class MongoReaderBase extends CasCollectionReader_ImplBase{
 		this.coll = db.getCollection(this.mongoCollection);
 		logger.info("connected to Collection "+this.coll.getName());
 		DBObject query = (DBObject) JSON.parse(this.queryString);
-		this.totalDocs = this.coll.count(query);
+		if (!this.checkpointName.isEmpty()) {
+			query = resumeFromCheckpoint(query);
+		}
+		countDocuments(query);
 		logger.info("performing query "+query.toString()+" on collection "+this.coll.toString());
-		// create our pipeline operations, first with the $match
-		DBObject match = new BasicDBObject("$match", query);
-		DBObject limit = new BasicDBObject("$limit", this.maxItems);
+		if (this.pushdown && !serverVersionAtLeast(3, 2)) {
+			logger.warning(PARAM_PUSHDOWN+" requires MongoDB 3.2 or newer, retrieving whole fields");
+			this.pushdown = false;
+		}
 		// build the $projection operation
-		DBObject fields = new BasicDBObject();
+		this.projection = new BasicDBObject();
 		//TODO: properly make fields configurable
-		fields.put("id", "$_id");
-		fields.put("lang", (DBObject) JSON.parse(this.language));
+		this.projection.put("id", "$_id");
+		if (this.language.startsWith("$")) { // plain field path
+			this.projection.put("lang", this.language);
+		} else {
+			this.projection.put("lang", JSON.parse(this.language));
+		}
 		this.fieldsList = this.fieldsString.split(",");
-		for (String f: this.fieldsList) {
-			f = f.trim();
-			fields.put(f.replaceAll("\\.", SEPARATOR), "$"+f);
+		for (int i = 0; i < this.fieldsList.length; i++) {
+			this.fieldsList[i] = this.fieldsList[i].trim();
+		}
+		this.fields = DocumentBuilder.compile(this.fieldsList, SEPARATOR);
+		for (DocumentBuilder.Field f: this.fields) {
+			Object fieldProjection = this.pushdown ? fieldProjection(f.getPath()) : "$"+f.getPath();
+			f.setProjected(!(fieldProjection instanceof String));
+			this.projection.put(f.getKey(), fieldProjection);
 		}
 		if (this.metaFieldsString != null) {
 			this.metaFieldsList = this.metaFieldsString.split(",");
-			for (String f: this.metaFieldsList) {
-				f = f.trim();
-				fields.put(f.replaceAll("\\.", SEPARATOR), "$"+f);
+			for (int i = 0; i < this.metaFieldsList.length; i++) {
+				this.metaFieldsList[i] = this.metaFieldsList[i].trim();
+				this.projection.put(this.metaFieldsList[i].replaceAll("\\.", SEPARATOR), "$"+this.metaFieldsList[i]);
+			}
+		}
+		this.countedFields.clear();
+		this.countedFields.addAll(Arrays.asList(this.fields));
+		this.countedFields.addAll(this.metaLoader.getFields(this.metaFieldsList));
+		System.out.println(this.projection);
+		if (this.noCursorTimeout) {
+			for (Object value : this.projection.toMap().values()) {
+				if (!(value instanceof String)) {
+					logger.warning("projection "+value+" is not a plain field path, can't use cursors without timeout");
+					this.noCursorTimeout = false;
+				}
 			}
 		}
-		System.out.println(fields);
 		//fields.put("text", "$meta.source.text");
-		DBObject project = new BasicDBObject("$project", fields );
+
+		if (this.cursorRetries > 0 && !this.indexOrder && !this.noCursorTimeout) {
+			// otherwise $limit selects an arbitrary subset, which differs when the query is re-run after a failure
+			logger.info("re-opening failed cursors ("+PARAM_CURSOR_RETRIES+"="+this.cursorRetries
+					+ ") requires documents to be read in _id order, enabling "+PARAM_INDEX_ORDER);
+			this.indexOrder = true;
+		}
+		if (this.indexOrder && !this.noCursorTimeout) {
+			checkQueryPlan(query);
+		}
+
+		if (!this.claimQueue.isEmpty()) {
+			if (this.workerId == null || this.workerId.isEmpty()) {
+				this.workerId = ManagementFactory.getRuntimeMXBean().getName();
+			}
+			logger.info("claiming documents from queue "+this.claimQueue+" as worker "+this.workerId);
+			this.claimingCursor = new ClaimingCursor(query);
+			Iterator<DBObject> cursor = this.claimingCursor;
+			if (this.prefetchDepth > 0) {
+				cursor = new MergingCursor(Arrays.asList(cursor), this.prefetchDepth, "MongoReaderPrefetch");
+			}
+			this.resCursor = cursor;
+		} else if (this.partitions > 1) {
+			List<Iterator<DBObject>> cursors = new ArrayList<Iterator<DBObject>>();
+			for (DBObject partitionQuery : partitionQueries(query, this.partitions)) {
+				cursors.add(openCursor(partitionQuery));
+			}
+			logger.info("reading from "+cursors.size()+" partitions in parallel");
+			// each partition is limited to MaxItems, the workers stop once MaxItems are read in total
+			this.resCursor = new MergingCursor(cursors, this.partitionQueueSize, "MongoReaderPartition", this.maxItems);
+		} else if (this.prefetchDepth > 0) {
+			logger.info("prefetching up to "+this.prefetchDepth+" documents");
+			this.resCursor = new MergingCursor(Arrays.asList(openCursor(query)), this.prefetchDepth, "MongoReaderPrefetch");
+		} else {
+			this.resCursor = openCursor(query);
+		}
+		logger.info("initialize() - Done.");
+	}
+
+	/**
+	 * @param major required major version
+	 * @param minor required minor version
+	 * @return whether the server has at least the given version (false if it can't be determined)
+	 */
+	private boolean serverVersionAtLeast(int major, int minor) {
+		try {
+			String versionString = this.db.command("buildInfo").getString("version");
+			String[] version = versionString == null ? new String[0] : versionString.split("\\.");
+			if (version.length < 2) {
+				logger.warning("could not determine MongoDB version: "+versionString);
+				return false;
+			}
+			int serverMajor = Integer.parseInt(version[0]);
+			int serverMinor = Integer.parseInt(version[1]);
+			return serverMajor > major || (serverMajor == major && serverMinor >= minor);
+		} catch (MongoException | NumberFormatException e) {
+			logger.warning("could not determine MongoDB version: "+e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Projection of a result field in the aggregation pipeline.
+	 * Subclasses can override this to only retrieve the parts of a field they actually use
+	 * (e.g. with $map, $filter or $slice), the default retrieves the whole field.
+	 * @param field the field in dot notation, as given in {@link #PARAM_FIELDS}
+	 * @return projection expression
+	 */
+	protected Object fieldProjection(String field) {
+		return "$"+field;
+	}
+
+	/**
+	 * Determine the total number of documents according to {@link #PARAM_COUNT}
+	 * @param query the query
+	 */
+	private void countDocuments(final DBObject query) {
+		if (COUNT_EXACT.equals(this.countMode)) {
+			this.totalDocs = this.coll.count(query);
+		} else if (COUNT_ESTIMATED.equals(this.countMode)) {
+			// size of the whole collection, taken from its metadata
+			this.totalDocs = this.coll.getCount();
+			this.totalApproximate = true;
+		} else if (COUNT_BACKGROUND.equals(this.countMode)) {
+			Thread counter = new Thread(new Runnable() {
+				public void run() {
+					try {
+						totalDocs = coll.count(query);
+						logger.info("found "+totalDocs+" matching documents");
+					} catch (MongoException e) {
+						logger.warning("could not count documents: "+e.toString());
+					}
+				}
+			}, "MongoReaderCount");
+			counter.setDaemon(true);
+			counter.start();
+		} else if (!COUNT_NONE.equals(this.countMode)) {
+			logger.warning("unknown count mode "+this.countMode+", not counting documents");
+		}
+	}
+
+	/**
+	 * Load the checkpoint and restrict the query to documents after it
+	 * @param query the original query
+	 * @return query for the documents that haven't been consumed yet
+	 * @throws ResourceInitializationException if the checkpoint can't be loaded
+	 */
+	private DBObject resumeFromCheckpoint(DBObject query) throws ResourceInitializationException {
+		if (this.partitions > 1 || !this.claimQueue.isEmpty()) {
+			logger.warning("checkpointing requires documents to be read in _id order, "
+					+ "ignoring it for partitioned or claiming readers");
+			this.checkpointName = "";
+			return query;
+		}
+		if (!this.indexOrder) {
+			// otherwise MaxItems selects an arbitrary subset, and documents before the checkpoint may be left unprocessed
+			logger.info("checkpointing requires documents to be read in _id order, enabling "+PARAM_INDEX_ORDER);
+			this.indexOrder = true;
+		}
+		Checkpoint.Store store;
+		if (this.checkpointFile != null && !this.checkpointFile.isEmpty()) {
+			store = new Checkpoint.FileStore(new File(this.checkpointFile));
+		} else {
+			store = new Checkpoint.MongoStore(this.db.getCollection(this.checkpointCollection), this.checkpointName);
+		}
+		try {
+			this.checkpoint = Checkpoint.register(this.checkpointName, store, this.checkpointInterval, this.checkpointWindow);
+		} catch (IOException e) {
+			throw new ResourceInitializationException(e);
+		}
+		Object lastId = this.checkpoint.getLastConsumed();
+		if (lastId == null) {
+			return query;
+		}
+		List<Object> skipped = this.checkpoint.getSkipped();
+		logger.info("resuming after checkpoint "+lastId+", retrying "+skipped.size()+" skipped documents");
+		// the _id index makes this a range scan
+		DBObject remaining = new BasicDBObject("_id", new BasicDBObject("$gt", lastId));
+		if (!skipped.isEmpty()) { // delivered first in _id order
+			remaining = new BasicDBObject("$or", Arrays.asList(remaining,
+					new BasicDBObject("_id", new BasicDBObject("$in", skipped))));
+		}
+		return new BasicDBObject("$and", Arrays.asList(query, remaining));
+	}
+
+	/**
+	 * Open a cursor over the projected documents matching the query.
+	 * The cursor is transparently re-opened after the last delivered document
+	 * if it fails (e.g. because it timed out on the server).
+	 * @param query the $match condition
+	 * @return cursor over the projected documents
+	 */
+	protected Iterator<DBObject> openCursor(DBObject query) {
+		return new ResumableCursor(query);
+	}
+
+	/**
+	 * Run the query, either as aggregation or (for cursors without timeout) as find
+	 * @param query the $match condition
+	 * @param limit maximum number of documents
+	 * @return cursor over the projected documents
+	 */
+	private Iterator<DBObject> runQuery(DBObject query, int limit) {
+		if (this.noCursorTimeout) {
+			return runFind(query, limit);
+		}
+		return runAggregation(query, limit);
+	}
+
+	/**
+	 * Build the aggregation pipeline for the given query.
+	 * By default this is $match, $limit, $project, $sort. In index order mode it is
+	 * $match, $sort (on _id), $limit, $project instead, so that the _id index can serve
+	 * the sort and results are streamed without materializing the whole result set.
+	 * @param query the $match condition
+	 * @param maxDocs maximum number of documents
+	 * @return the pipeline
+	 */
+	private List<DBObject> buildPipeline(DBObject query, int maxDocs) {
+		// create our pipeline operations, first with the $match
+		DBObject match = new BasicDBObject("$match", query);
+		DBObject limit = new BasicDBObject("$limit", maxDocs);
+		DBObject project = new BasicDBObject("$project", this.projection);
+		if (this.indexOrder) {
+			DBObject sort = new BasicDBObject("$sort", new BasicDBObject("_id", 1));
+			return Arrays.asList(match, sort, limit, project);
+		}
 		// Finally the $sort operation
 		DBObject sort = new BasicDBObject("$sort", new BasicDBObject("id", 1));
+		return Arrays.asList(match, limit, project, sort);
+	}
 
+	private AggregationOptions aggregationOptions() {
+		return AggregationOptions.builder()
+				.batchSize(this.batchSize)
+				.outputMode(AggregationOptions.OutputMode.CURSOR)
+				.allowDiskUse(true)
+				.build();
+	}
+
+	/**
+	 * Run the aggregation pipeline for the given query
+	 * @param query the $match condition
+	 * @param limit maximum number of documents
+	 * @return cursor over the projected documents
+	 * @see #buildPipeline(DBObject, int)
+	 */
+	private Iterator<DBObject> runAggregation(DBObject query, int limit) {
 		// run aggregation
-		List<DBObject> pipeline = Arrays.asList(match, limit, project, sort);
+		List<DBObject> pipeline = buildPipeline(query, limit);
 		try {
-			AggregationOptions aggregationOptions = AggregationOptions.builder()
-					.batchSize(100)
-					.outputMode(AggregationOptions.OutputMode.CURSOR)
-					.allowDiskUse(true)
-					.build();
-			this.resCursor = this.coll.aggregate(pipeline, aggregationOptions);
+			return this.coll.aggregate(pipeline, aggregationOptions());
 		} catch (CommandFailureException e) { // MongoDB version <2.6 doesn't support cursors
 			logger.warning("Your MongoDB version doesn't seem to support cursors for aggregation pipelines. "
 					+ "The result set is therefore limited to 16MB. "
 					+ "Use a version >=2.6 to access larger amounts of data.\n"
 					+ e.toString());
 			AggregationOutput output = coll.aggregate(pipeline);
-			this.resCursor = output.results().iterator();
+			return output.results().iterator();
+		}
+	}
+
+	/**
+	 * Explain the aggregation pipeline and warn if it needs a collection scan
+	 * or sorts in memory, i.e. can't stream results in index order
+	 * @param query the $match condition
+	 */
+	private void checkQueryPlan(DBObject query) {
+		try {
+			CommandResult explain = this.coll.explainAggregate(buildPipeline(query, this.maxItems), aggregationOptions());
+			String plan = explain.toString();
+			if (plan.contains("COLLSCAN") || plan.contains("BasicCursor")) {
+				logger.warning("query "+query+" needs a collection scan, consider adding an index");
+			}
+			Object stages = explain.get("stages");
+			if (stages instanceof List) {
+				for (Object stage : (List<?>) stages) {
+					if (stage instanceof DBObject && ((DBObject) stage).containsField("$sort")) {
+						logger.warning("sort can't be served by an index, results will be sorted in memory before streaming");
+					}
+				}
+			}
+			if (plan.contains("\"SORT\"")) {
+				logger.warning("query plan contains an in-memory SORT stage");
+			}
+			logger.fine(plan);
+		} catch (MongoException e) {
+			logger.warning("could not explain query: "+e.toString());
+		}
+	}
+
+	/**
+	 * Run the query as find() with a cursor that never times out on the server,
+	 * which isn't possible for aggregation cursors. The projection is applied
+	 * on the client, which requires all projected values to be plain field paths.
+	 * @param query the find condition
+	 * @param limit maximum number of documents
+	 * @return cursor over the projected documents
+	 */
+	private Iterator<DBObject> runFind(DBObject query, int limit) {
+		DBObject fields = new BasicDBObject();
+		for (Object path : this.projection.toMap().values()) {
+			fields.put(((String) path).substring(1), 1);
+		}
+		final DBCursor cursor = this.coll.find(query, fields)
+				.sort(new BasicDBObject("_id", 1))
+				.limit(limit)
+				.batchSize(this.batchSize)
+				.addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+		return new FlatteningCursor(cursor);
+	}
+
+	/**
+	 * Applies the projection to documents from a find() cursor, so that they look like
+	 * the results of the aggregation pipeline
+	 */
+	private class FlatteningCursor implements Iterator<DBObject>, Closeable {
+
+		private final DBCursor cursor;
+
+		FlatteningCursor(DBCursor cursor) {
+			this.cursor = cursor;
+		}
+
+		public boolean hasNext() {
+			return this.cursor.hasNext();
+		}
+
+		public DBObject next() {
+			DBObject doc = this.cursor.next();
+			DBObject flat = new BasicDBObject();
+			for (String key : projection.keySet()) {
+				Object value = doc;
+				for (String part : ((String) projection.get(key)).substring(1).split("\\.")) {
+					value = (value instanceof DBObject) ? ((DBObject) value).get(part) : null;
+				}
+				if (value != null) {
+					flat.put(key, value);
+				}
+			}
+			return flat;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		public void close() {
+			this.cursor.close();
+		}
+	}
+
+	/**
+	 * Cursor that remembers the last delivered _id and re-runs the query
+	 * from there when the underlying cursor fails, e.g. with CursorNotFound
+	 * after it timed out on the server.
+	 * This relies on documents being delivered in _id order, see {@link #PARAM_INDEX_ORDER}.
+	 */
+	private class ResumableCursor implements Iterator<DBObject>, Closeable {
+
+		private final DBObject query;
+		private Iterator<DBObject> cursor;
+		private Object lastId = null;
+		/** number of documents delivered, the limit of a re-run query is reduced by it */
+		private int delivered = 0;
+		private int failures = 0;
+
+		ResumableCursor(DBObject query) {
+			this.query = query;
+			this.cursor = runQuery(query, maxItems);
+		}
+
+		public boolean hasNext() {
+			while (true) {
+				try {
+					return this.cursor.hasNext();
+				} catch (MongoException e) {
+					reopen(e);
+				}
+			}
+		}
+
+		public DBObject next() {
+			while (true) {
+				try {
+					DBObject doc = this.cursor.next();
+					this.lastId = doc.get("id");
+					this.delivered++;
+					this.failures = 0;
+					return doc;
+				} catch (MongoException e) {
+					reopen(e);
+				}
+			}
+		}
+
+		private void reopen(MongoException e) {
+			if (++this.failures > cursorRetries) {
+				throw e;
+			}
+			logger.warning("cursor failed after document "+this.lastId+", re-opening it: "+e.toString());
+			close();
+			if (this.lastId == null) {
+				this.cursor = runQuery(this.query, maxItems);
+			} else if (this.delivered >= maxItems) {
+				this.cursor = Collections.<DBObject>emptyIterator();
+			} else {
+				this.cursor = runQuery(new BasicDBObject("$and", Arrays.asList(this.query,
+						new BasicDBObject("_id", new BasicDBObject("$gt", this.lastId)))), maxItems - this.delivered);
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		public void close() {
+			if (this.cursor instanceof Closeable) {
+				closeQuietly((Closeable) this.cursor);
+			}
+		}
+	}
+
+	/**
+	 * Split the query into non-overlapping ranges of _id of roughly equal size.
+	 * The boundaries are interpolated between the smallest and largest matching _id
+	 * (for ObjectIds, numbers and UUIDs), which only needs two index lookups.
+	 * Other _id types are split at quantiles of a random sample (requires MongoDB 3.2).
+	 * @param query the original query
+	 * @param n the number of partitions
+	 * @return one query per partition
+	 */
+	private List<DBObject> partitionQueries(DBObject query, int n) {
+		List<Object> boundaries = new ArrayList<Object>();
+		Object min = boundaryId(query, 1);
+		Object max = boundaryId(query, -1);
+		if (min != null && max != null && !min.equals(max)) {
+			for (int i = 1; i < n; i++) {
+				Object id = interpolateId(min, max, (double) i / n);
+				if (id == null) { // unsupported type
+					boundaries = sampleBoundaries(query, n);
+					break;
+				}
+				if (boundaries.isEmpty() || !boundaries.get(boundaries.size()-1).equals(id)) {
+					boundaries.add(id);
+				}
+			}
+		}
+		List<DBObject> queries = new ArrayList<DBObject>();
+		for (int i = 0; i <= boundaries.size(); i++) {
+			BasicDBObject range = new BasicDBObject();
+			if (i > 0) {
+				range.append("$gte", boundaries.get(i-1));
+			}
+			if (i < boundaries.size()) {
+				range.append("$lt", boundaries.get(i));
+			}
+			if (range.isEmpty()) { // single partition
+				queries.add(query);
+			} else {
+				queries.add(new BasicDBObject("$and", Arrays.asList(query, new BasicDBObject("_id", range))));
+			}
+		}
+		return queries;
+	}
+
+	/**
+	 * @param query the query
+	 * @param direction 1 for the smallest _id, -1 for the largest
+	 * @return smallest or largest _id of the matching documents (null if none match)
+	 */
+	private Object boundaryId(DBObject query, int direction) {
+		DBObject idOnly = new BasicDBObject("_id", 1);
+		DBCursor cursor = this.coll.find(query, idOnly).sort(new BasicDBObject("_id", direction)).limit(1);
+		try {
+			return cursor.hasNext() ? cursor.next().get("_id") : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @param min smallest _id
+	 * @param max largest _id
+	 * @param fraction position between them (0-1)
+	 * @return an _id at the given position in the index order, null if the type is not supported
+	 */
+	static Object interpolateId(Object min, Object max, double fraction) {
+		if (min instanceof ObjectId && max instanceof ObjectId) { // by creation time
+			long minTime = ((ObjectId) min).getTimestamp() & 0xffffffffL;
+			long maxTime = ((ObjectId) max).getTimestamp() & 0xffffffffL;
+			return new ObjectId(new Date((minTime + (long) ((maxTime - minTime) * fraction)) * 1000));
+		}
+		if ((min instanceof Integer || min instanceof Long) && (max instanceof Integer || max instanceof Long)) {
+			long minValue = ((Number) min).longValue();
+			return minValue + (long) ((((Number) max).longValue() - minValue) * fraction);
+		}
+		if (min instanceof Number && max instanceof Number) {
+			double minValue = ((Number) min).doubleValue();
+			return minValue + (((Number) max).doubleValue() - minValue) * fraction;
+		}
+		if (min instanceof UUID && max instanceof UUID) { // BinData, ordered by its bytes
+			BigInteger minValue = new BigInteger(1, uuidBytes((UUID) min));
+			BigInteger maxValue = new BigInteger(1, uuidBytes((UUID) max));
+			BigInteger step = new BigDecimal(maxValue.subtract(minValue)).multiply(BigDecimal.valueOf(fraction)).toBigInteger();
+			return uuidFromBytes(minValue.add(step).toByteArray());
+		}
+		return null;
+	}
+
+	/**
+	 * @param uuid a UUID
+	 * @return the bytes as stored by the Java driver (legacy format: both halves little-endian)
+	 */
+	private static byte[] uuidBytes(UUID uuid) {
+		return ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN)
+				.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+	}
+
+	/**
+	 * @param bytes unsigned big-endian number of up to 16 bytes (a leading sign byte is ignored)
+	 * @return the UUID stored with these bytes
+	 * @see #uuidBytes(UUID)
+	 */
+	private static UUID uuidFromBytes(byte[] bytes) {
+		byte[] padded = new byte[16];
+		int length = Math.min(bytes.length, 16);
+		System.arraycopy(bytes, bytes.length - length, padded, 16 - length, length);
+		ByteBuffer buffer = ByteBuffer.wrap(padded).order(ByteOrder.LITTLE_ENDIAN);
+		return new UUID(buffer.getLong(), buffer.getLong());
+	}
+
+	/**
+	 * Find partition boundaries at the quantiles of a random sample of the matching _ids
+	 * @param query the query
+	 * @param n the number of partitions
+	 * @return the boundaries, in _id order (empty if the sample can't be taken)
+	 */
+	private List<Object> sampleBoundaries(DBObject query, int n) {
+		List<Object> boundaries = new ArrayList<Object>();
+		int size = 100 * n;
+		List<DBObject> pipeline = Arrays.<DBObject>asList(
+				new BasicDBObject("$match", query),
+				new BasicDBObject("$sample", new BasicDBObject("size", size)),
+				new BasicDBObject("$project", new BasicDBObject("_id", 1)),
+				new BasicDBObject("$sort", new BasicDBObject("_id", 1)));
+		try {
+			List<Object> sample = new ArrayList<Object>();
+			Iterator<DBObject> cursor = this.coll.aggregate(pipeline, aggregationOptions());
+			while (cursor.hasNext()) {
+				sample.add(cursor.next().get("_id"));
+			}
+			for (int i = 1; i < n && !sample.isEmpty(); i++) {
+				Object id = sample.get(sample.size() * i / n);
+				if (boundaries.isEmpty() || !boundaries.get(boundaries.size()-1).equals(id)) {
+					boundaries.add(id);
+				}
+			}
+		} catch (MongoException e) {
+			logger.warning("could not sample _ids to partition the query, reading a single partition: "+e.toString());
+		}
+		return boundaries;
+	}
+
+	/**
+	 * Atomically claim a batch of documents for this worker.
+	 * Documents matching the query are claimed unless another worker holds them,
+	 * documents whose lease has expired are claimed regardless of the query.
+	 * Claimed documents are marked with processing.queues.&lt;queue&gt;={@value #STATE_IN_PROCESS}
+	 * and processing.leases.&lt;queue&gt;={worker, expires}.
+	 * @param query the original query
+	 * @param limit maximum number of documents to claim
+	 * @return state of the claimed documents before claiming them, by _id (empty when nothing is left to claim)
+	 */
+	private Map<Object, Object> claimBatch(DBObject query, int limit) {
+		String stateField = "processing.queues."+this.claimQueue;
+		String leaseField = "processing.leases."+this.claimQueue;
+		Date now = new Date();
+		DBObject claimable = new BasicDBObject("$or", Arrays.asList(
+				new BasicDBObject("$and", Arrays.asList(query,
+						new BasicDBObject(stateField, new BasicDBObject("$ne", STATE_IN_PROCESS)))),
+				new BasicDBObject(stateField, STATE_IN_PROCESS)
+						.append(leaseField+".expires", new BasicDBObject("$lt", now))
+				));
+		DBObject lease = new BasicDBObject("worker", this.workerId)
+				.append("expires", new Date(now.getTime() + this.leaseSeconds * 1000L));
+		DBObject update = new BasicDBObject("$set", new BasicDBObject(stateField, STATE_IN_PROCESS)
+				.append(leaseField, lease));
+		DBObject idOnly = new BasicDBObject("_id", 1);
+		DBObject idAndState = new BasicDBObject("_id", 1).append(stateField, 1);
+		Map<Object, Object> claimed = new LinkedHashMap<Object, Object>();
+		while (claimed.size() < limit) {
+			DBObject previous = this.coll.findAndModify(claimable, idAndState, idOnly, false, update, false, false);
+			if (previous == null) {
+				break;
+			}
+			DBObject processing = (DBObject) previous.get("processing");
+			DBObject queues = processing == null ? null : (DBObject) processing.get("queues");
+			claimed.put(previous.get("_id"), queues == null ? null : queues.get(this.claimQueue));
+		}
+		logger.fine("claimed "+claimed.size()+" documents");
+		return claimed;
+	}
+
+	/**
+	 * Give back documents that were claimed but not processed, restoring their previous state
+	 * (or expiring the lease if they had been claimed from an expired lease).
+	 * Documents that have been claimed by another worker in the meantime are left alone.
+	 * @param claimed state of the documents before claiming them, by _id
+	 */
+	private void releaseClaims(Map<Object, Object> claimed) {
+		String stateField = "processing.queues."+this.claimQueue;
+		String leaseField = "processing.leases."+this.claimQueue;
+		Map<Object, List<Object>> byState = new HashMap<Object, List<Object>>();
+		for (Map.Entry<Object, Object> entry : claimed.entrySet()) {
+			List<Object> ids = byState.get(entry.getValue());
+			if (ids == null) {
+				ids = new ArrayList<Object>();
+				byState.put(entry.getValue(), ids);
+			}
+			ids.add(entry.getKey());
+		}
+		for (Map.Entry<Object, List<Object>> entry : byState.entrySet()) {
+			Object state = entry.getKey();
+			DBObject update;
+			if (state == null) {
+				update = new BasicDBObject("$unset", new BasicDBObject(stateField, "").append(leaseField, ""));
+			} else if (STATE_IN_PROCESS.equals(state)) {
+				update = new BasicDBObject("$set", new BasicDBObject(leaseField+".expires", new Date(0)));
+			} else {
+				update = new BasicDBObject("$set", new BasicDBObject(stateField, state))
+						.append("$unset", new BasicDBObject(leaseField, ""));
+			}
+			DBObject ours = new BasicDBObject("_id", new BasicDBObject("$in", entry.getValue()))
+					.append(stateField, STATE_IN_PROCESS)
+					.append(leaseField+".worker", this.workerId);
+			this.coll.update(ours, update, false, true);
+		}
+		logger.info("released "+claimed.size()+" claimed but unprocessed documents");
+	}
+
+	/**
+	 * Iterates over documents claimed batch by batch with {@link MongoReaderBase#claimBatch(DBObject, int)}.
+	 * Never claims more than {@link #PARAM_MAXITEMS} documents in total, and keeps track of
+	 * the documents that haven't been delivered to the pipeline yet, so that they can be released.
+	 */
+	private class ClaimingCursor implements Iterator<DBObject>, Closeable {
+
+		private final DBObject query;
+		private Iterator<DBObject> batch = Collections.<DBObject>emptyIterator();
+		private boolean exhausted = false;
+		private volatile boolean released = false;
+		private int claimedTotal = 0;
+		/** previous state of claimed documents not yet delivered, by _id */
+		private final Map<Object, Object> undelivered = Collections.synchronizedMap(new LinkedHashMap<Object, Object>());
+
+		ClaimingCursor(DBObject query) {
+			this.query = query;
+		}
+
+		public boolean hasNext() {
+			while (!this.batch.hasNext() && !this.exhausted && !this.released) {
+				close();
+				int limit = Math.min(claimBatchSize, maxItems - this.claimedTotal);
+				Map<Object, Object> claimed = limit > 0 ? claimBatch(this.query, limit) : Collections.<Object, Object>emptyMap();
+				if (claimed.isEmpty()) {
+					this.exhausted = true;
+				} else if (this.released) { // closed while claiming
+					releaseClaims(claimed);
+					this.exhausted = true;
+				} else {
+					this.claimedTotal += claimed.size();
+					this.undelivered.putAll(claimed);
+					this.batch = openCursor(new BasicDBObject("_id", new BasicDBObject("$in", new ArrayList<Object>(claimed.keySet()))));
+				}
+			}
+			return !this.released && this.batch.hasNext();
+		}
+
+		public DBObject next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return this.batch.next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * @param id _id of a document handed to the pipeline
+		 */
+		void delivered(Object id) {
+			this.undelivered.remove(id);
+		}
+
+		/**
+		 * stop claiming and give back all claimed documents that weren't delivered
+		 */
+		void release() {
+			this.released = true;
+			Map<Object, Object> claimed;
+			synchronized (this.undelivered) {
+				claimed = new LinkedHashMap<Object, Object>(this.undelivered);
+				this.undelivered.clear();
+			}
+			if (!claimed.isEmpty()) {
+				releaseClaims(claimed);
+			}
+		}
+
+		public void close() {
+			if (this.batch instanceof Closeable) {
+				closeQuietly((Closeable) this.batch);
+			}
 		}
-		logger.info("initialize() - Done.");
 	}
 
 	public boolean hasNext() throws IOException, CollectionException {
+		if (this.completed >= this.maxItems) {
+			return false;
+		}
 		return this.resCursor.hasNext();
 	}
 
 
+	/**
+	 * Get the next document from the result cursor and keep track of it.
+	 * Subclasses should call this rather than accessing {@link #resCursor} directly.
+	 * @return the next projected document
+	 */
+	protected DBObject nextDocument() {
+		DBObject doc = this.resCursor.next();
+		if (this.claimingCursor != null) {
+			this.claimingCursor.delivered(doc.get("id"));
+		}
+		if (this.checkpoint != null) {
+			this.checkpoint.delivered(doc.get("id"));
+		}
+		return doc;
+	}
+
 	public void close() throws IOException {
-		this.mongoClient.close();
+		if (this.checkpoint != null) {
+			this.checkpoint.save();
+		}
+		if (this.resCursor instanceof MergingCursor) {
+			MergingCursor cursor = (MergingCursor) this.resCursor;
+			logger.info(String.format("reader waited %d times for MongoDB, %d ms in total",
+					cursor.getStallCount(), cursor.getStallMillis()));
+		}
+		for (DocumentBuilder.Field f : this.countedFields) {
+			if (f.getMissing() > 0) {
+				logger.info(String.format("field %s missing in %d of %d documents",
+						f.getPath(), f.getMissing(), f.getPresent() + f.getMissing()));
+			}
+		}
+		if (this.resCursor instanceof Closeable) {
+			((Closeable) this.resCursor).close();
+		}
+		if (this.claimingCursor != null) {
+			this.claimingCursor.release();
+		}
+		if (this.mongoClient != null) { // close() may be called more than once
+			SharedMongoClients.release(this.mongoUri);
+			this.mongoClient = null;
+		}
 	}
 
 	public Progress[] getProgress(){
-		return new Progress[] { new ProgressImpl(this.completed, (int) this.totalDocs, Progress.ENTITIES) };
+		long total = this.totalDocs;
+		if (total >= 0) {
+			total = Math.min(total, this.maxItems);
+		}
+		List<Progress> progress = new ArrayList<Progress>();
+		progress.add(new ProgressImpl((long) this.completed, total, Progress.ENTITIES, this.totalApproximate));
+		if (this.resCursor instanceof MergingCursor) { // report prefetch queue statistics
+			MergingCursor cursor = (MergingCursor) this.resCursor;
+			progress.add(new ProgressImpl(cursor.getQueueSize(), cursor.getCapacity(), PROGRESS_PREFETCH_QUEUE));
+			progress.add(new ProgressImpl((int) cursor.getStallMillis(), -1, PROGRESS_PREFETCH_STALL));
+		}
+		for (DocumentBuilder.Field f : this.countedFields) { // report missing fields
+			long present = f.getPresent();
+			progress.add(new ProgressImpl(present, present + f.getMissing(), PROGRESS_FIELD_PREFIX + f.getPath(), false));
+		}
+		return progress.toArray(new Progress[progress.size()]);
 	}
 
 	/**
@@ -219,32 +1184,55 @@ public abstract class MongoReaderBase extends CasCollectionReader_ImplBase{
 	/**
 	 * Utility function to remove characters that can't be represented in XML 1.0
 	 * based on http://stackoverflow.com/a/28283387
+	 * Returns the original string if it is valid (the usual case), otherwise copies
+	 * the valid runs in bulk. Unpaired surrogates are replaced, one substitute per char.
 	 * 
 	 * @param text original text
 	 * @param substitute substitution string for invalid characters
 	 * @return text containing only valid XML characters, others replaced by space
 	 */
 	protected static String validXmlCharacters(String text, String substitute) {
-	StringBuilder sb = new StringBuilder();
-	for (int i = 0; i < text.length(); i++) {
-	    int codePoint = text.codePointAt(i);
-	    if (codePoint > 0xFFFF) {
-	        i++;
-	    }
-	    if ((codePoint == 0x9) || (codePoint == 0xA) || (codePoint == 0xD)
-	            || ((codePoint >= 0x20) && (codePoint <= 0xD7FF))
-	            || ((codePoint >= 0xE000) && (codePoint <= 0xFFFD))
-	            || ((codePoint >= 0x10000) && (codePoint <= 0x10FFFF))) {
-	        sb.appendCodePoint(codePoint);
-	    }
-	    else {
-	    	sb.append(substitute);
-	    }
+		int length = text.length();
+		int i = 0;
+		int valid;
+		while (i < length && (valid = validXmlCharLength(text, i)) > 0) {
+			i += valid;
+		}
+		if (i == length) {
+			return text;
+		}
+		StringBuilder sb = new StringBuilder(length + 16);
+		int start = 0; // start of the current run of valid characters
+		while (i < length) {
+			valid = validXmlCharLength(text, i);
+			if (valid > 0) {
+				i += valid;
+			} else {
+				sb.append(text, start, i).append(substitute);
+				start = ++i;
+			}
+		}
+		sb.append(text, start, length);
+		return sb.toString();
 	}
-	return sb.toString();
-}
-	
-	
+
+	/**
+	 * @param text a text
+	 * @param i index of a char in the text
+	 * @return length in chars of the valid XML character at the index (2 for a surrogate pair), 0 if invalid
+	 */
+	private static int validXmlCharLength(String text, int i) {
+		char c = text.charAt(i);
+		if ((c >= 0x20 && c <= 0xD7FF) || c == 0x9 || c == 0xA || c == 0xD || (c >= 0xE000 && c <= 0xFFFD)) {
+			return 1;
+		}
+		if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+			return 2; // supplementary planes (0x10000-0x10FFFF) are all valid
+		}
+		return 0;
+	}
+
+
 	/**
 	 * return example descriptor (XML) when calling main method
 	 * @param args not used
@@ -2,6 +2,7 @@ package eu.eumssi.uima.reader;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -14,11 +15,11 @@ import org.apache.uima.jcas.JCas;
 import org.apache.uima.resource.ResourceInitializationException;
 import org.xml.sax.SAXException;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 
-import eu.eumssi.uima.reader.util.EumssiMetaLoader;
+import eu.eumssi.uima.reader.util.DocumentBuilder;
 import eu.eumssi.uima.ts.OcrSegment;
-import eu.eumssi.uima.ts.Segment;
 import eu.eumssi.uima.ts.SourceMeta;
 import eu.eumssi.uima.ts.TopOcrSegment;
 
@@ -45,6 +46,35 @@ public class OcrReader extends MongoReaderBase {
 			description="put all hypotheses at the same character offsets (document text only contains best), if false concatenate all hypotheses sequentially")
 	private Boolean verticallyAligned;
 
+	/**
+	 * properties used to build the CAS, detections and hypotheses missing any of them are skipped
+	 */
+	private static final String[] DETECTION_FIELDS = {"Hypotheses", "mediaRelIncrTimePoint_S", "mediaIncrDuration_S"};
+	private static final String[] HYPOTHESIS_FIELDS = {"text", "score"};
+
+	/**
+	 * Only retrieve the detection and hypothesis properties used to build the CAS.
+	 * With OnlyBest, only the two best hypotheses are needed (the second one for the confidence ratio).
+	 * @see eu.eumssi.uima.reader.MongoReaderBase#fieldProjection(java.lang.String)
+	 */
+	@Override
+	protected Object fieldProjection(String field) {
+		Object hypotheses = "$$d.Hypotheses";
+		if (onlyBest) {
+			hypotheses = new BasicDBObject("$slice", Arrays.asList(hypotheses, 2));
+		}
+		DBObject detection = new BasicDBObject("mediaRelIncrTimePoint_S", "$$d.mediaRelIncrTimePoint_S")
+				.append("mediaIncrDuration_S", "$$d.mediaIncrDuration_S")
+				.append("Hypotheses", new BasicDBObject("$map",
+						new BasicDBObject("input", hypotheses)
+						.append("as", "h")
+						.append("in", new BasicDBObject("text", "$$h.text").append("score", "$$h.score"))));
+		return new BasicDBObject("VideoTextDetection", new BasicDBObject("$map",
+				new BasicDBObject("input", "$"+field+".VideoTextDetection")
+				.append("as", "d")
+				.append("in", detection)));
+	}
+
 	/* (non-Javadoc)
 	 * @see org.apache.uima.collection.CollectionReader#getNext(org.apache.uima.cas.CAS)
 	 */
@@ -56,95 +86,80 @@ public class OcrReader extends MongoReaderBase {
 		catch(CASException e){
 			throw new CollectionException(e);
 		}
-		DBObject doc = this.resCursor.next();
+		DBObject doc = nextDocument();
 		String documentId = doc.get("id").toString(); // hopefully correct conversion to string
 		logger.fine(documentId);
 
 		// create document text from all available text fields
-		StringBuilder documentText = new StringBuilder();
-		Integer segmentIndex = 0;
-		Integer tokenIndex = 0;
-		for (String f: this.fieldsList) { // just one field normally
-			try {
-				segmentIndex = documentText.length(); // TODO: check for off-by-one
-				if (segmentIndex > 0) {
-					// separate segments with newlines
-					documentText.append("\n\n\n");
-					segmentIndex += 3;
-					tokenIndex += 3;
+		this.documentBuilder.reset();
+		for (DocumentBuilder.Field f: this.fields) { // just one field normally
+			DBObject ocr = (DBObject) f.get(doc);
+			@SuppressWarnings("unchecked")
+			List<DBObject> detectionList = ocr == null ? null : (List<DBObject>) ocr.get("VideoTextDetection");
+			if (detectionList == null) {
+				// just leave text empty if document doesn't have one
+				continue;
+			}
+			// segments are separated with newlines
+			this.documentBuilder.beginSegment();
+			for (DBObject detection : detectionList) {
+				logger.fine(detection.toString());
+				if (!DocumentBuilder.hasFields(detection, DETECTION_FIELDS)) {
+					logger.fine(String.format("incomplete detection in document %s", documentId));
+					continue;
 				}
 				@SuppressWarnings("unchecked")
-				List<DBObject> detectionList = (List<DBObject>) ((DBObject) doc.get(f.replaceAll("\\.", SEPARATOR))).get("VideoTextDetection");
-				for (DBObject detection : detectionList) {
-					tokenIndex = documentText.length();
-					logger.fine(detection.toString());
-					@SuppressWarnings("unchecked")
-					List<DBObject> hypotheses = (List<DBObject>)detection.get("Hypotheses");
-					Boolean first = true;
-					int beginTime = (int) ((double)detection.get("mediaRelIncrTimePoint_S"))*1000;
-					int endTime = (int) ((double)detection.get("mediaIncrDuration_S"))*1000 + beginTime;
-					for (DBObject hypothesis : hypotheses) {
-						tokenIndex = documentText.length();
-						String ocrText = hypothesis.get("text").toString(); // should be a String field anyway
-						logger.fine(ocrText);
-						double conf = (double) hypothesis.get("score");
-						OcrSegment ocrSegment;
-						if (first) {
-							if (tokenIndex > 0) {
-								documentText.append("\n");
-								tokenIndex++;
-							}
-							documentText.append(ocrText + " .");
-							double secondScore = 0;
-							try {
-								secondScore = (double) hypotheses.get(1).get("score");
-							} catch (IndexOutOfBoundsException e) {
-								// treat score as 0
-							}
-							double confRatio = secondScore / conf;
-							ocrSegment = new TopOcrSegment(jcas);
-							((TopOcrSegment)ocrSegment).setConfidenceRatio(confRatio);
-							first = false;
-						} else {
-							if (!verticallyAligned) { // add all hypotheses to document text
-								documentText.append("\n");
-								tokenIndex++;
-								documentText.append(ocrText + " .");
-							}
-							ocrSegment = new OcrSegment(jcas);
-						}
-						ocrSegment.setBegin(tokenIndex);
-						ocrSegment.setEnd(documentText.length());
-						ocrSegment.setBeginTime(beginTime);
-						ocrSegment.setEndTime(endTime);
-						ocrSegment.setConfidence(conf);
-						ocrSegment.setText(ocrText);
-						ocrSegment.addToIndexes();
-						if (onlyBest) { // only mark top hypothesis
-							break;
+				List<DBObject> hypotheses = (List<DBObject>)detection.get("Hypotheses");
+				Boolean first = true;
+				int beginTime = (int) ((double)detection.get("mediaRelIncrTimePoint_S"))*1000;
+				int endTime = (int) ((double)detection.get("mediaIncrDuration_S"))*1000 + beginTime;
+				for (DBObject hypothesis : hypotheses) {
+					if (!DocumentBuilder.hasFields(hypothesis, HYPOTHESIS_FIELDS)) {
+						continue;
+					}
+					int tokenIndex = this.documentBuilder.length();
+					String ocrText = hypothesis.get("text").toString(); // should be a String field anyway
+					logger.fine(ocrText);
+					double conf = (double) hypothesis.get("score");
+					OcrSegment ocrSegment;
+					if (first) {
+						tokenIndex = this.documentBuilder.appendToken(ocrText, "\n");
+						this.documentBuilder.append(" .");
+						double secondScore = 0;
+						if (hypotheses.size() > 1 && hypotheses.get(1).get("score") != null) {
+							secondScore = (double) hypotheses.get(1).get("score");
+						} // else treat score as 0
+						double confRatio = secondScore / conf;
+						ocrSegment = new TopOcrSegment(jcas);
+						((TopOcrSegment)ocrSegment).setConfidenceRatio(confRatio);
+						first = false;
+					} else {
+						if (!verticallyAligned) { // add all hypotheses to document text
+							this.documentBuilder.append("\n");
+							tokenIndex = this.documentBuilder.append(ocrText);
+							this.documentBuilder.append(" .");
 						}
+						ocrSegment = new OcrSegment(jcas);
+					}
+					ocrSegment.setBegin(tokenIndex);
+					ocrSegment.setEnd(this.documentBuilder.length());
+					ocrSegment.setBeginTime(beginTime);
+					ocrSegment.setEndTime(endTime);
+					ocrSegment.setConfidence(conf);
+					ocrSegment.setText(ocrText);
+					ocrSegment.addToIndexes();
+					if (onlyBest) { // only mark top hypothesis
+						break;
 					}
 				}
-				// create segment annotation
-				Segment segAnno = new Segment(jcas);
-				segAnno.setBegin(segmentIndex);
-				segAnno.setEnd(documentText.length());
-				segAnno.setSourceField(f);
-				try {
-					segAnno.setName(f.split("\\.")[-1]);
-				} catch (Exception e) {
-					segAnno.setName(f);
-				}
-				segAnno.addToIndexes();
-			} catch (NullPointerException e) {
-				logger.info(e.toString());
-				// just leave text empty if document doesn't have one
 			}
+			// create segment annotation
+			this.documentBuilder.endSegment(jcas, f);
 		}
-		jcas.setDocumentText(documentText.toString());
+		jcas.setDocumentText(this.documentBuilder.getText());
 
 		// create metadata annotation
-		SourceMeta metadata = EumssiMetaLoader.getMeta(jcas, doc);
+		SourceMeta metadata = this.metaLoader.getMeta(jcas, doc);
 		metadata.addToIndexes();
 
 		this.completed++;
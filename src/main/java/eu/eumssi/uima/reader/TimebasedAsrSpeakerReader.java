@@ -3,12 +3,14 @@ package eu.eumssi.uima.reader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
+import org.apache.uima.UimaContext;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.CASException;
 import org.apache.uima.collection.CollectionException;
@@ -20,11 +22,10 @@ import org.xml.sax.SAXException;
 
 import com.mongodb.DBObject;
 
-import eu.eumssi.uima.reader.util.EumssiMetaLoader;
+import eu.eumssi.uima.reader.util.DocumentBuilder;
 import eu.eumssi.uima.ts.AsrFiller;
 import eu.eumssi.uima.ts.AsrToken;
 import eu.eumssi.uima.ts.AsrWord;
-import eu.eumssi.uima.ts.Segment;
 import eu.eumssi.uima.ts.SourceMeta;
 import eu.eumssi.uima.ts.SpeakerTurn;
 
@@ -50,6 +51,25 @@ public class TimebasedAsrSpeakerReader extends MongoReaderBase {
 	@ConfigurationParameter(name=PARAM_SPEAKERFIELD, mandatory=false,
 			description="speaker recognition result field in MongoDB, needs to also be included in MongoMetaFields")
 	protected String speakerField;
+	private DocumentBuilder.Field speakerResults;
+	private static final String[] TRACK_FIELDS = {"start_S", "end_S"};
+
+	@Override
+	public void initialize(UimaContext context) throws ResourceInitializationException {
+		super.initialize(context);
+		if (this.speakerField != null) {
+			this.speakerResults = new DocumentBuilder.Field(this.speakerField.trim(), SEPARATOR);
+			this.countedFields.add(this.speakerResults);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.eumssi.uima.reader.MongoReaderBase#fieldProjection(java.lang.String)
+	 */
+	@Override
+	protected Object fieldProjection(String field) {
+		return AsrReader.tokenProjection(field);
+	}
 
 	/* (non-Javadoc)
 	 * @see org.apache.uima.collection.CollectionReader#getNext(org.apache.uima.cas.CAS)
@@ -62,19 +82,22 @@ public class TimebasedAsrSpeakerReader extends MongoReaderBase {
 		catch(CASException e){
 			throw new CollectionException(e);
 		}
-		DBObject doc = this.resCursor.next();
+		DBObject doc = nextDocument();
 		String documentId = doc.get("id").toString(); // hopefully correct conversion to string
 		logger.fine(documentId);
 
 		// load speaker tracks
-		DBObject speakers = (DBObject) doc.get(speakerField.replaceAll("\\.", SEPARATOR));
+		DBObject speakers = this.speakerResults == null ? null : (DBObject) this.speakerResults.get(doc);
 		ArrayList<Map<String, Object>> tracks = new ArrayList<Map<String,Object>>();
-		for (String speakerId : speakers.keySet()) {
+		for (String speakerId : speakers == null ? Collections.<String>emptySet() : speakers.keySet()) {
 			DBObject speaker = (DBObject) speakers.get(speakerId);
 			String gender = (String) speaker.get("speaker_gender");
 			List<DBObject> trackDbList = (List<DBObject>) speaker.get("audio_segments");
 			if (trackDbList != null) { // person is a speaker
 				for (DBObject track : trackDbList) {
+					if (!DocumentBuilder.hasFields(track, TRACK_FIELDS)) {
+						continue;
+					}
 					Map<String,Object> tr = new HashMap<String,Object>();
 					tr.put("start", (int) (Double.parseDouble(track.get("start_S").toString())*1000));
 					tr.put("end", (int) (Double.parseDouble(track.get("end_S").toString())*1000));
@@ -95,63 +118,52 @@ public class TimebasedAsrSpeakerReader extends MongoReaderBase {
 			speakerTurn.setGender((String) track.get("gender"));
 			speakerTurn.addToIndexes();
 		}
-		// create document text from all available text fields
-		StringBuilder documentText = new StringBuilder();
-		Integer segmentIndex = 0;
-		Integer tokenIndex = 0;
-		for (String f: this.fieldsList) { // just one field normally
-			try {
-				segmentIndex = documentText.length();
-				if (segmentIndex > 0) {
-					// separate segments with newlines
-					documentText.append("\n\n\n");
-					segmentIndex += 3;
-					tokenIndex += 3;
+		// mark the tokens of all available ASR fields; the sofa is the media itself,
+		// so no document text is built and the annotations use time-based offsets
+		for (DocumentBuilder.Field f: this.fields) { // just one field normally
+			DBObject asr = (DBObject) f.get(doc);
+			List<DBObject> tokenList = asr == null ? null : (List<DBObject>) asr.get("content");
+			if (tokenList == null) {
+				// just leave it empty if document doesn't have one
+				continue;
+			}
+			for (DBObject token : tokenList) {
+				if (!DocumentBuilder.hasFields(token, AsrReader.TOKEN_FIELDS)) {
+					logger.fine(String.format("incomplete token %s in document %s", token, documentId));
+					continue;
 				}
-				List<DBObject> tokenList = (List<DBObject>) ((DBObject) doc.get(f.replaceAll("\\.", SEPARATOR))).get("content");
-				for (DBObject token : tokenList) {
-					tokenIndex = documentText.length();
-					String tokenText = token.get("item").toString(); // should be a String field anyway
-					int beginTime = (int) (Double.parseDouble(token.get("start").toString())*1000);
-					int endTime = (int) (Double.parseDouble(token.get("end").toString())*1000);
-					double conf = Double.parseDouble(token.get("conf").toString());
-					String type = token.get("type").toString();
-					if (tokenIndex > 0) {
-						documentText.append(" ");
-						tokenIndex++;
-					}				
-					documentText.append(tokenText);
-					AsrToken tokenAnno;
-					if (type.equals("word")) {
-						tokenAnno = new AsrWord(jcas);
-					} else if (onlyWords) { // don't mark fillers or others
-						continue;
-					} else if (type.equals("filler")) {
-						tokenAnno = new AsrFiller(jcas);
-					} else {
-						tokenAnno = new AsrToken(jcas);
-						logger.info(String.format("unknown token type %s in document %s", type, documentId));
-					}
-					// use time-based offsets
-					tokenAnno.setBegin(beginTime);
-					tokenAnno.setEnd(endTime);
-					tokenAnno.setBeginTime(beginTime);
-					tokenAnno.setEndTime(endTime);
-					tokenAnno.setConfidence(conf);
-					tokenAnno.setTokenType(type);
-					tokenAnno.setText(tokenText);
-					tokenAnno.addToIndexes();
+				String tokenText = token.get("item").toString(); // should be a String field anyway
+				int beginTime = (int) (Double.parseDouble(token.get("start").toString())*1000);
+				int endTime = (int) (Double.parseDouble(token.get("end").toString())*1000);
+				double conf = Double.parseDouble(token.get("conf").toString());
+				String type = token.get("type").toString();
+				AsrToken tokenAnno;
+				if (type.equals("word")) {
+					tokenAnno = new AsrWord(jcas);
+				} else if (onlyWords) { // don't mark fillers or others
+					continue;
+				} else if (type.equals("filler")) {
+					tokenAnno = new AsrFiller(jcas);
+				} else {
+					tokenAnno = new AsrToken(jcas);
+					logger.info(String.format("unknown token type %s in document %s", type, documentId));
 				}
-			} catch (NullPointerException e) {
-				// just leave text empty if document doesn't have one
+				// use time-based offsets
+				tokenAnno.setBegin(beginTime);
+				tokenAnno.setEnd(endTime);
+				tokenAnno.setBeginTime(beginTime);
+				tokenAnno.setEndTime(endTime);
+				tokenAnno.setConfidence(conf);
+				tokenAnno.setTokenType(type);
+				tokenAnno.setText(tokenText);
+				tokenAnno.addToIndexes();
 			}
 		}
-		//jcas.setDocumentText(documentText.toString());
 		String mediaUrl = "http://eumssi.eu/dummy.mp4"; // TODO: set real media URL (though not used)
 		jcas.setSofaDataURI(mediaUrl, "video/mp4");
 
 		// create metadata annotation
-		SourceMeta metadata = EumssiMetaLoader.getMeta(jcas, doc);
+		SourceMeta metadata = this.metaLoader.getMeta(jcas, doc);
 		metadata.addToIndexes();
 
 		this.completed++;
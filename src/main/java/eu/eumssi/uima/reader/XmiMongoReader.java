@@ -9,27 +9,64 @@ import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.uima.UimaContext;
 import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.AllowPreexistingFS;
+import org.apache.uima.cas.impl.Serialization;
 import org.apache.uima.cas.impl.XmiCasDeserializer;
+import org.apache.uima.cas.impl.XmiSerializationSharedData;
 import org.apache.uima.collection.CollectionException;
 import org.apache.uima.fit.descriptor.ConfigurationParameter;
 import org.apache.uima.fit.factory.CollectionReaderFactory;
 import org.apache.uima.resource.ResourceInitializationException;
+import org.bson.types.ObjectId;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
 
 import de.tudarmstadt.ukp.dkpro.core.api.resources.CompressionMethod;
+import eu.eumssi.uima.codec.CasCodecs;
+import eu.eumssi.uima.reader.util.CasBase;
+import eu.eumssi.uima.reader.util.DocumentBuilder;
+import eu.eumssi.uima.reader.util.StoredTypeSystems;
+import eu.eumssi.uima.reader.util.XmiFilter;
 
 /**
  * Read CAS in XMI format from MongoDB, with optional compression.
- * Currently only supports reading a complete CAS from one field in MongoDB.
- * Merging views from different serialized CASes is planned in future releases.
+ * CASes stored in UIMA compressed binary format (bin6&lt;ext&gt;) are detected automatically,
+ * as are CASes compressed with a {@link eu.eumssi.uima.codec.CasCodec} (xmi_z, bin6_z),
+ * regardless of {@link #PARAM_COMPRESSION}.
+ * CASes that were spilled to GridFS because of their size are streamed from there.
+ * With {@link #PARAM_DECODE_THREADS}, documents are decompressed on a thread pool ahead of getNext.
+ * With {@link #PARAM_VIEWS} and {@link #PARAM_TYPES}, only the needed parts of the CAS are loaded.
+ * The fields are loaded in order into the same CAS: the first one has to hold a complete CAS,
+ * the following ones may hold deltas (as written by XmiMongoConsumer with PARAM_DELTA),
+ * which are merged into it. A delta needs all the fields it was based on to be loaded before.
  * @author jgrivolla
  *
  */
@@ -54,6 +91,88 @@ public class XmiMongoReader extends MongoReaderBase{
 	@ConfigurationParameter(name=PARAM_LENIENT, mandatory=true, defaultValue="false")
 	private boolean lenient;
 
+	/**
+	 * GridFS bucket holding CASes that were too large to be stored inline
+	 */
+	public static final String PARAM_GRIDFS_BUCKET = "gridFSBucket";
+	@ConfigurationParameter(name=PARAM_GRIDFS_BUCKET, mandatory=false, defaultValue="cas",
+			description="GridFS bucket holding CASes that were too large to be stored inline")
+	private String gridFSBucket;
+	private GridFS gridFS;
+
+	/**
+	 * Only load these views, comma separated (all if not set).
+	 * Other views are skipped while parsing, without creating feature structures (XMI only).
+	 */
+	public static final String PARAM_VIEWS = "views";
+	@ConfigurationParameter(name=PARAM_VIEWS, mandatory=false,
+			description="only load these views, comma separated (XMI only)")
+	private String views;
+
+	/**
+	 * Only load feature structures of these types and their subtypes, comma separated (all if not set).
+	 * Other feature structures are skipped while parsing (XMI only).
+	 */
+	public static final String PARAM_TYPES = "types";
+	@ConfigurationParameter(name=PARAM_TYPES, mandatory=false,
+			description="only load feature structures of these types and their subtypes, comma separated (XMI only)")
+	private String types;
+
+	/** SAX parser, deserializer and view/type selection, reused for all documents */
+	private XMLReader xmlReader = null;
+	private XmiCasDeserializer deserializer = null;
+	private XmiFilter selection = null;
+	private TypeSystem deserializerTypeSystem = null;
+
+	/**
+	 * Number of threads decompressing documents ahead of getNext (0 = decompress in getNext).
+	 * Document order is kept, the decompressed data of up to two documents per thread is held in memory.
+	 */
+	public static final String PARAM_DECODE_THREADS = "decodeThreads";
+	@ConfigurationParameter(name=PARAM_DECODE_THREADS, mandatory=false, defaultValue="0",
+			description="number of threads decompressing documents ahead of getNext (0 = decompress in getNext)")
+	private Integer decodeThreads;
+	private ExecutorService decoders = null;
+	/** documents being decoded, in cursor order */
+	private final Queue<Future<List<StoredCas>>> decoding = new ArrayDeque<Future<List<StoredCas>>>();
+	private final Queue<DBObject> decodingDocs = new ArrayDeque<DBObject>();
+
+	@Override
+	public void initialize(UimaContext context) throws ResourceInitializationException {
+		super.initialize(context);
+		// the metadata comes with the stored CAS, the meta loader isn't used
+		this.countedFields.removeAll(Arrays.asList(this.metaLoader.getFields()));
+		this.gridFS = new GridFS(this.db, this.gridFSBucket);
+		if (this.decodeThreads > 0) {
+			this.decoders = Executors.newFixedThreadPool(this.decodeThreads, new ThreadFactory() {
+				private int count = 0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "XmiDecoder-" + (this.count++));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Only retrieve the serialized CAS (XMI or binary) for the configured compression method,
+	 * or with a codec header
+	 * @see eu.eumssi.uima.reader.MongoReaderBase#fieldProjection(java.lang.String)
+	 */
+	@Override
+	protected Object fieldProjection(String field) {
+		String extension = this.compression.getExtension().replace(".", "_");
+		return new BasicDBObject("xmi"+extension, "$"+field+".xmi"+extension)
+				.append("bin6"+extension, "$"+field+".bin6"+extension)
+				.append("xmi"+CasCodecs.FIELD_SUFFIX, "$"+field+".xmi"+CasCodecs.FIELD_SUFFIX)
+				.append("bin6"+CasCodecs.FIELD_SUFFIX, "$"+field+".bin6"+CasCodecs.FIELD_SUFFIX)
+				.append(CasBase.FIELD_BASE, "$"+field+"."+CasBase.FIELD_BASE)
+				.append(CasBase.FIELD_MERGEPOINT, "$"+field+"."+CasBase.FIELD_MERGEPOINT)
+				.append(XmiFilter.FIELD_PARTIAL, "$"+field+"."+XmiFilter.FIELD_PARTIAL)
+				.append(StoredTypeSystems.FIELD_TYPESYSTEM, "$"+field+"."+StoredTypeSystems.FIELD_TYPESYSTEM);
+	}
+
 	/** add compression to input stream (as specified in PARAM_COMPRESSION)
 	 * @param is the original input stream
 	 * @return possibly compressed input stream 
@@ -63,7 +182,7 @@ public class XmiMongoReader extends MongoReaderBase{
 	private InputStream getInputStream(InputStream is) throws IOException
 	{
 		if (this.compression.equals(GZIP)) {
-			is = new GZIPInputStream(is);
+			is = CasCodecs.forName("gzip").decompress(is); // same format, but with a reusable inflater
 		}
 		else if (this.compression.equals(BZIP2)) {
 			is = new BZip2CompressorInputStream(is);
@@ -75,40 +194,268 @@ public class XmiMongoReader extends MongoReaderBase{
 	}
 
 
+	/**
+	 * @param value a stored CAS: a byte array, or the id of a GridFS file the CAS was spilled to
+	 * @return stream of the stored bytes (not yet decompressed), without copying them
+	 * @throws IOException if a GridFS file is missing
+	 */
+	private InputStream openStoredCas(Object value) throws IOException {
+		if (value instanceof ObjectId) { // streamed from GridFS, chunk by chunk
+			GridFSDBFile file = this.gridFS.find((ObjectId) value);
+			if (file == null) {
+				throw new IOException("missing GridFS file "+value+" in bucket "+this.gridFSBucket);
+			}
+			return file.getInputStream();
+		} else {
+			return new ByteArrayInputStream((byte[]) value);
+		}
+	}
+
+
+	/**
+	 * Parse XMI into the CAS, reusing the SAX parser and deserializer of this reader
+	 * @param source the XMI
+	 * @param aCAS the CAS to fill
+	 * @param sharedData XMI ids of the document
+	 * @param mergePoint highest XMI id of the base for deltas, -1 for a complete CAS
+	 * @param lenient whether to ignore unknown types and references to missing feature structures
+	 * @throws IOException
+	 * @throws SAXException
+	 */
+	void deserializeXmi(InputSource source, CAS aCAS, XmiSerializationSharedData sharedData, int mergePoint,
+			boolean lenient) throws IOException, SAXException {
+		if (this.xmlReader == null) { // namespace aware, as XmiCasDeserializer maps namespaces to type names
+			this.xmlReader = XMLReaderFactory.createXMLReader();
+		}
+		if (this.deserializer == null || this.deserializerTypeSystem != aCAS.getTypeSystem()) {
+			this.deserializerTypeSystem = aCAS.getTypeSystem();
+			this.deserializer = new XmiCasDeserializer(this.deserializerTypeSystem);
+			this.selection = new XmiFilter(XmiFilter.split(this.views), null,
+					XmiFilter.split(this.types), null, this.deserializerTypeSystem);
+		}
+		lenient |= this.selection.isActive(); // skipped feature structures may still be referenced
+		ContentHandler handler;
+		if (mergePoint < 0) {
+			handler = this.deserializer.getXmiCasHandler(aCAS, lenient, sharedData);
+		} else {
+			handler = this.deserializer.getXmiCasHandler(aCAS, lenient, sharedData, mergePoint, AllowPreexistingFS.allow);
+		}
+		if (this.selection.isActive()) {
+			this.selection.reset();
+			this.selection.setContentHandler(handler);
+			handler = this.selection;
+		}
+		this.xmlReader.setContentHandler(handler);
+		this.xmlReader.parse(source);
+	}
+
+
+	/**
+	 * A serialized CAS of a document, opened for deserialization
+	 */
+	private static class StoredCas {
+		final String field;
+		final DBObject casObject;
+		final boolean binary;
+		/** the XMI, if stored as uncompressed String */
+		final String xmi;
+		/** the decompressed data otherwise */
+		final InputStream stream;
+
+		StoredCas(String field, DBObject casObject, boolean binary, String xmi, InputStream stream) {
+			this.field = field;
+			this.casObject = casObject;
+			this.binary = binary;
+			this.xmi = xmi;
+			this.stream = stream;
+		}
+	}
+
+	/**
+	 * Open the serialized CAS of a document stored in one field
+	 * @param doc the document
+	 * @param field the field holding the CAS
+	 * @param decompress whether to fully decompress the data now instead of streaming it during deserialization
+	 * @return the opened CAS
+	 * @throws IOException
+	 */
+	private StoredCas openStoredCase(DBObject doc, DocumentBuilder.Field field, boolean decompress) throws IOException {
+		String extension = this.compression.getExtension().replace(".", "_");
+		String f = field.getPath();
+		DBObject casObject = (DBObject) field.get(doc);
+		if (casObject == null) {
+			throw new IOException("no stored CAS in field "+f+" of document "+doc.get("_id"));
+		}
+		Object xmi = casObject.get("xmi" + extension);
+		InputStream cas_is = null;
+		boolean binary = false;
+		if (casObject.containsField("bin6" + CasCodecs.FIELD_SUFFIX)) { // codec detected from header
+			binary = true;
+			cas_is = CasCodecs.decompress(openStoredCas(casObject.get("bin6" + CasCodecs.FIELD_SUFFIX)));
+		} else if (casObject.containsField("xmi" + CasCodecs.FIELD_SUFFIX)) {
+			cas_is = CasCodecs.decompress(openStoredCas(casObject.get("xmi" + CasCodecs.FIELD_SUFFIX)));
+		} else if (casObject.containsField("bin6" + extension)) { // UIMA compressed binary format
+			binary = true;
+			cas_is = getInputStream(openStoredCas(casObject.get("bin6" + extension)));
+		} else if (xmi instanceof String) { // uncompressed XMI, parsed directly from the String
+			return new StoredCas(f, casObject, false, (String) xmi, null);
+		} else {
+			cas_is = getInputStream(openStoredCas(xmi));
+		}
+		if (decompress) {
+			InputStream compressed = cas_is;
+			try {
+				cas_is = new ByteArrayInputStream(IOUtils.toByteArray(compressed));
+			} finally {
+				closeQuietly(compressed);
+			}
+		}
+		return new StoredCas(f, casObject, binary, null, cas_is);
+	}
+
+	/**
+	 * Fully decompress the serialized CASes of a document (one per configured field).
+	 * Each field is read completely before the next one is opened, as the decompressors
+	 * of a thread may be reused.
+	 * @param doc the document
+	 * @return the CASes, in field order
+	 * @throws IOException
+	 */
+	private List<StoredCas> openStoredCases(DBObject doc) throws IOException {
+		List<StoredCas> cases = new ArrayList<StoredCas>();
+		boolean opened = false;
+		try {
+			for (DocumentBuilder.Field field: this.fields) {
+				cases.add(openStoredCase(doc, field, true));
+			}
+			opened = true;
+			return cases;
+		} finally {
+			if (!opened) {
+				for (StoredCas stored : cases) {
+					closeQuietly(stored.stream);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * start decoding documents on the worker pool, up to the look-ahead limit
+	 */
+	private void decodeAhead() throws IOException, CollectionException {
+		while (this.decoding.size() < 2 * this.decodeThreads
+				&& this.completed + this.decoding.size() < this.maxItems
+				&& this.resCursor.hasNext()) {
+			final DBObject doc = nextDocument(); // cursor is only used on this thread
+			this.decoding.add(this.decoders.submit(new Callable<List<StoredCas>>() {
+				public List<StoredCas> call() throws IOException {
+					return openStoredCases(doc);
+				}
+			}));
+			this.decodingDocs.add(doc);
+		}
+	}
+
+
+	/* (non-Javadoc)
+	 * @see eu.eumssi.uima.reader.MongoReaderBase#hasNext()
+	 */
+	@Override
+	public boolean hasNext() throws IOException, CollectionException {
+		return !this.decoding.isEmpty() || super.hasNext();
+	}
+
+
 	/* (non-Javadoc)
 	 * @see org.apache.uima.collection.CollectionReader#getNext(org.apache.uima.cas.CAS)
 	 */
 	public void getNext(CAS aCAS) throws IOException, CollectionException {
-		DBObject doc = this.resCursor.next();
+		DBObject doc;
+		List<StoredCas> cases = null; // opened one at a time while deserializing without worker pool
+		if (this.decoders == null) {
+			doc = nextDocument();
+		} else { // take the oldest document from the worker pool, to keep the order
+			decodeAhead();
+			doc = this.decodingDocs.poll();
+			try {
+				cases = this.decoding.poll().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			} finally {
+				decodeAhead();
+			}
+		}
 		String documentId = doc.get("id").toString(); // hopefully correct conversion to string
 		logger.info(documentId);
-		String casType = "xmi" + this.compression.getExtension().replace(".", "_");
-		for (String f: this.fieldsList) {
+		XmiSerializationSharedData sharedData = new XmiSerializationSharedData();
+		List<String> loaded = new ArrayList<String>();
+		boolean isBase = true; // whether the result can serve as base for further deltas
+		for (int i = 0; i < this.fields.length; i++) {
+			StoredCas stored = cases != null ? cases.get(i) : openStoredCase(doc, this.fields[i], false);
+			String f = stored.field;
+			DBObject casObject = stored.casObject;
+			// partially stored CASes may refer to feature structures that were left out
+			boolean lenient = this.lenient || Boolean.TRUE.equals(casObject.get(XmiFilter.FIELD_PARTIAL));
+			InputSource source = stored.xmi != null
+					? new InputSource(new StringReader(stored.xmi))
+					: new InputSource(stored.stream);
 			try {
-				ByteArrayInputStream xmi_bais;
-				if (this.compression.equals(CompressionMethod.NONE)) { // saved as String
-					xmi_bais = new ByteArrayInputStream(
-							((String) ((DBObject) doc.get(f.replaceAll("\\.", SEPARATOR))).get(casType))
-							.getBytes("UTF-8")
-							);
+				if (stored.binary && casObject.containsField(StoredTypeSystems.FIELD_TYPESYSTEM)) { // types left out
+					TypeSystem storedTypeSystem = StoredTypeSystems.load(this.gridFS,
+							(String) casObject.get(StoredTypeSystems.FIELD_TYPESYSTEM));
+					Serialization.deserializeCAS(aCAS, stored.stream, storedTypeSystem, null);
+					isBase = false; // no XMI ids
+				} else if (stored.binary) {
+					Serialization.deserializeCAS(aCAS, stored.stream);
+					isBase = false; // no XMI ids
+				} else if (casObject.containsField(CasBase.FIELD_BASE)) { // delta
+					@SuppressWarnings("unchecked")
+					List<String> base = (List<String>) casObject.get(CasBase.FIELD_BASE);
+					if (!loaded.containsAll(base)) {
+						throw new IOException("delta in "+f+" of document "+documentId+" is based on "+base+", loaded only "+loaded);
+					}
+					isBase &= base.equals(loaded); // merged siblings have conflicting XMI ids
+					deserializeXmi(source, aCAS, sharedData, ((Number) casObject.get(CasBase.FIELD_MERGEPOINT)).intValue(), lenient);
 				} else {
-					xmi_bais = new ByteArrayInputStream( // saved as byte array
-							(byte[]) ((DBObject) doc.get(f.replaceAll("\\.", SEPARATOR))).get(casType)
-							);
+					isBase &= loaded.isEmpty();
+					deserializeXmi(source, aCAS, sharedData, -1, lenient);
 				}
-				InputStream xmi_is = getInputStream(xmi_bais);
-				closeQuietly(xmi_is); // make sure it's fully flushed
-				XmiCasDeserializer.deserialize(xmi_is, aCAS, lenient);
-				closeQuietly(xmi_bais);
+				loaded.add(f);
 			}
 			catch (SAXException e) {
 				throw new IOException(e);
 			}
+			finally {
+				closeQuietly(stored.stream);
+			}
 		}
+		isBase &= this.selection == null || !this.selection.isActive(); // deltas need the complete CAS
+		CasBase.register(aCAS, isBase ? new CasBase(sharedData, aCAS.createMarker(), loaded) : null);
 		this.completed++;
 	}
 
 
+	/* (non-Javadoc)
+	 * @see eu.eumssi.uima.reader.MongoReaderBase#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.decoders != null) {
+			this.decoders.shutdownNow();
+			this.decoding.clear();
+			this.decodingDocs.clear();
+		}
+		super.close();
+	}
+
+
 	/**
 	 * return example descriptor (XML) when calling main method
 	 * @param args not used
@@ -0,0 +1,91 @@
+package eu.eumssi.uima.reader.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Marker;
+import org.apache.uima.cas.impl.XmiSerializationSharedData;
+
+/**
+ * State of a CAS as loaded from XMI by XmiMongoReader, so that consumers can store only
+ * the changes made by later annotators (delta CAS) instead of a full copy.
+ * Consists of the XMI ids assigned while loading, a marker set once loading was complete,
+ * and the fields the CAS was loaded from (the base the delta refers to).
+ * Reader and consumers find it through the CAS itself, so they need to run in the same JVM.
+ * @author jgrivolla
+ *
+ */
+public class CasBase {
+
+	/** field of a stored delta listing the fields it is relative to, in loading order */
+	public static final String FIELD_BASE = "base";
+	/** field of a stored delta holding the highest XMI id of its base */
+	public static final String FIELD_MERGEPOINT = "mergePoint";
+
+	private static final Map<CAS, CasBase> registry = Collections.synchronizedMap(new WeakHashMap<CAS, CasBase>());
+
+	private final XmiSerializationSharedData sharedData;
+	private final Marker marker;
+	private final List<String> fields;
+	private final int mergePoint;
+
+	/**
+	 * @param sharedData XMI ids of the loaded feature structures
+	 * @param marker marker set after loading
+	 * @param fields fields the CAS was loaded from, in loading order
+	 */
+	public CasBase(XmiSerializationSharedData sharedData, Marker marker, List<String> fields) {
+		this.sharedData = sharedData;
+		this.marker = marker;
+		this.fields = new ArrayList<String>(fields);
+		this.mergePoint = sharedData.getMaxXmiId();
+	}
+
+	/**
+	 * @param cas the loaded CAS
+	 * @param base its base, or null if it can't serve as a base for deltas
+	 */
+	public static void register(CAS cas, CasBase base) {
+		if (base == null) {
+			registry.remove(cas);
+		} else {
+			registry.put(cas, base);
+		}
+	}
+
+	/**
+	 * @param cas a CAS
+	 * @return the base of the CAS, or null if it wasn't loaded as one (or has been reset since)
+	 */
+	public static CasBase get(CAS cas) {
+		CasBase base = registry.get(cas);
+		if (base == null || !base.marker.isValid()) {
+			return null;
+		}
+		return base;
+	}
+
+	public XmiSerializationSharedData getSharedData() {
+		return this.sharedData;
+	}
+
+	public Marker getMarker() {
+		return this.marker;
+	}
+
+	public List<String> getFields() {
+		return this.fields;
+	}
+
+	/**
+	 * @return the highest XMI id of the base, feature structures with higher ids in a delta are new
+	 */
+	public int getMergePoint() {
+		return this.mergePoint;
+	}
+
+}
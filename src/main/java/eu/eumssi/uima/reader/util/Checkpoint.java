@@ -0,0 +1,285 @@
+package eu.eumssi.uima.reader.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Keeps track of the progress of a reader, so that a long run can be resumed after a crash.
+ * The reader registers every document it delivers (in _id order), consumers acknowledge
+ * documents once they are stored. The checkpoint is the last _id up to which all delivered
+ * documents have been acknowledged, and is periodically persisted to a file or a MongoDB
+ * control collection.
+ * Readers and consumers find each other by the checkpoint name, so they need to run in the same JVM.
+ * A document that is never acknowledged (e.g. because processing failed) is skipped
+ * once the window of pending documents is full, so that the checkpoint keeps advancing.
+ * Its _id is persisted with the checkpoint, so that it is read again when resuming,
+ * until it has been acknowledged.
+ * @author jgrivolla
+ *
+ */
+public class Checkpoint {
+
+	private static final Logger logger = Logger.getLogger(Checkpoint.class.toString());
+
+	private static final Map<String, Checkpoint> registry = new HashMap<String, Checkpoint>();
+
+	/**
+	 * persistent storage for the last consumed _id
+	 */
+	public interface Store {
+		/** @return the last consumed _id (null if none) */
+		Object load() throws IOException;
+		/** @return _ids of skipped documents that still need to be consumed */
+		List<Object> loadSkipped() throws IOException;
+		void save(Object lastId, Collection<Object> skipped) throws IOException;
+	}
+
+	private final String name;
+	private final Store store;
+	private final int interval;
+	private final int window;
+	/** delivered but not yet consumed documents, in delivery order (documentId -&gt; _id) */
+	private final LinkedHashMap<String, Object> pending = new LinkedHashMap<String, Object>();
+	/** acknowledged documents that are still preceded by unacknowledged ones */
+	private final Set<String> acknowledged = new HashSet<String>();
+	/** documents before the checkpoint that were never acknowledged (documentId -&gt; _id) */
+	private final LinkedHashMap<String, Object> skipped = new LinkedHashMap<String, Object>();
+	private Object lastConsumed;
+	private int unsaved = 0;
+
+	/**
+	 * @param name name used by consumers to acknowledge documents
+	 * @param store where to persist the checkpoint
+	 * @param interval number of consumed documents between saves
+	 * @param window maximum number of delivered but unacknowledged documents
+	 * @throws IOException if a previous checkpoint can't be loaded
+	 */
+	private Checkpoint(String name, Store store, int interval, int window) throws IOException {
+		this.name = name;
+		this.store = store;
+		this.interval = Math.max(interval, 1);
+		this.window = Math.max(window, 1);
+		this.lastConsumed = store.load();
+		for (Object id : store.loadSkipped()) {
+			this.skipped.put(id.toString(), id);
+		}
+	}
+
+	/**
+	 * Create (or replace) the checkpoint with the given name and load its last saved state.
+	 * @param name name used by consumers to acknowledge documents
+	 * @param store where to persist the checkpoint
+	 * @param interval number of consumed documents between saves
+	 * @param window maximum number of delivered but unacknowledged documents
+	 * @return the registered checkpoint
+	 * @throws IOException if a previous checkpoint can't be loaded
+	 */
+	public static synchronized Checkpoint register(String name, Store store, int interval, int window) throws IOException {
+		Checkpoint checkpoint = new Checkpoint(name, store, interval, window);
+		registry.put(name, checkpoint);
+		return checkpoint;
+	}
+
+	/**
+	 * Acknowledge a document for the named checkpoint (ignored if no such checkpoint is registered)
+	 * @param name name of the checkpoint
+	 * @param documentId id of the document, as found in SourceMeta
+	 */
+	public static void acknowledge(String name, String documentId) {
+		Checkpoint checkpoint;
+		synchronized (Checkpoint.class) {
+			checkpoint = registry.get(name);
+		}
+		if (checkpoint != null) {
+			checkpoint.acknowledge(documentId);
+		}
+	}
+
+	/**
+	 * @return last _id up to which all documents have been consumed (null if none)
+	 */
+	public synchronized Object getLastConsumed() {
+		return this.lastConsumed;
+	}
+
+	/**
+	 * @return _ids of documents before the checkpoint that still need to be consumed
+	 */
+	public synchronized List<Object> getSkipped() {
+		return new ArrayList<Object>(this.skipped.values());
+	}
+
+	/**
+	 * register a document handed to the pipeline
+	 * @param id the _id of the document
+	 */
+	public synchronized void delivered(Object id) {
+		if (this.skipped.containsKey(id.toString())) { // retried, stays skipped until acknowledged
+			return;
+		}
+		this.pending.put(id.toString(), id);
+		if (this.pending.size() > this.window) {
+			// the oldest document is still unacknowledged, otherwise it wouldn't be pending
+			Map.Entry<String, Object> oldest = this.pending.entrySet().iterator().next();
+			logger.warning("document "+oldest.getKey()+" not acknowledged after "+this.window
+					+" later documents, it will be read again when resuming checkpoint "+this.name);
+			this.skipped.put(oldest.getKey(), oldest.getValue());
+			this.acknowledged.add(oldest.getKey());
+			advance();
+		}
+	}
+
+	/**
+	 * register a document as fully processed, and advance the checkpoint if possible
+	 * @param documentId id of the document, as found in SourceMeta
+	 */
+	public synchronized void acknowledge(String documentId) {
+		if (this.skipped.remove(documentId) != null) {
+			this.unsaved++;
+			if (this.unsaved >= this.interval) {
+				save();
+			}
+			return;
+		}
+		if (!this.pending.containsKey(documentId)) {
+			return;
+		}
+		this.acknowledged.add(documentId);
+		advance();
+	}
+
+	/**
+	 * move the checkpoint past all leading acknowledged documents, saving it if needed
+	 */
+	private void advance() {
+		Iterator<Map.Entry<String, Object>> it = this.pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Object> first = it.next();
+			if (!this.acknowledged.remove(first.getKey())) {
+				break;
+			}
+			this.lastConsumed = first.getValue();
+			this.unsaved++;
+			it.remove();
+		}
+		if (this.unsaved >= this.interval) {
+			save();
+		}
+	}
+
+	/**
+	 * persist the current checkpoint
+	 */
+	public synchronized void save() {
+		if (this.unsaved == 0) {
+			return;
+		}
+		try {
+			this.store.save(this.lastConsumed, this.skipped.values());
+			this.unsaved = 0;
+			logger.fine("checkpoint "+this.name+" at "+this.lastConsumed);
+		} catch (IOException e) {
+			logger.severe("could not save checkpoint "+this.name+": "+e.toString());
+		}
+	}
+
+
+	/**
+	 * @param value a stored list of _ids, or null
+	 * @return the _ids
+	 */
+	private static List<Object> asList(Object value) {
+		List<Object> ids = new ArrayList<Object>();
+		if (value instanceof Collection) {
+			ids.addAll((Collection<?>) value);
+		}
+		return ids;
+	}
+
+
+	/**
+	 * Stores the checkpoint as JSON in a local file
+	 */
+	public static class FileStore implements Store {
+		private final File file;
+
+		public FileStore(File file) {
+			this.file = file;
+		}
+
+		public Object load() throws IOException {
+			if (!this.file.exists()) {
+				return null;
+			}
+			return read().get("_id");
+		}
+
+		public List<Object> loadSkipped() throws IOException {
+			return this.file.exists() ? asList(read().get("skipped")) : new ArrayList<Object>();
+		}
+
+		private DBObject read() throws IOException {
+			String json = new String(Files.readAllBytes(this.file.toPath()), StandardCharsets.UTF_8);
+			return (DBObject) JSON.parse(json);
+		}
+
+		public void save(Object lastId, Collection<Object> skipped) throws IOException {
+			// write to a temporary file first so that a crash never leaves a broken checkpoint
+			File tmp = new File(this.file.getPath()+".tmp");
+			DBObject checkpoint = new BasicDBObject("_id", lastId).append("skipped", new ArrayList<Object>(skipped));
+			Files.write(tmp.toPath(), JSON.serialize(checkpoint).getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+
+	/**
+	 * Stores the checkpoint in a MongoDB control collection, as {_id: name, last: lastId, skipped: [_id]}
+	 */
+	public static class MongoStore implements Store {
+		private final DBCollection coll;
+		private final String name;
+
+		public MongoStore(DBCollection coll, String name) {
+			this.coll = coll;
+			this.name = name;
+		}
+
+		public Object load() {
+			DBObject saved = this.coll.findOne(new BasicDBObject("_id", this.name));
+			return saved == null ? null : saved.get("last");
+		}
+
+		public List<Object> loadSkipped() {
+			DBObject saved = this.coll.findOne(new BasicDBObject("_id", this.name));
+			return saved == null ? new ArrayList<Object>() : asList(saved.get("skipped"));
+		}
+
+		public void save(Object lastId, Collection<Object> skipped) {
+			this.coll.update(new BasicDBObject("_id", this.name),
+					new BasicDBObject("$set", new BasicDBObject("last", lastId)
+							.append("skipped", new ArrayList<Object>(skipped)).append("updated", new Date())),
+					true, false);
+		}
+	}
+
+}
@@ -0,0 +1,225 @@
+package eu.eumssi.uima.reader.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.uima.jcas.JCas;
+
+import com.mongodb.DBObject;
+
+import eu.eumssi.uima.ts.Segment;
+
+/**
+ * Builds the document text of a CAS from one segment per configured field in a single buffer,
+ * keeping track of the offsets, and creates the Segment annotations.
+ * Each reader keeps one instance and resets it for every document.
+ * @author jgrivolla
+ *
+ */
+public class DocumentBuilder {
+
+	/** separates the segments in the document text */
+	public static final String SEGMENT_SEPARATOR = "\n\n\n";
+
+	/**
+	 * A configured field, with its key in the projected document and its segment name computed once.
+	 * Counts how many documents had the field, so that sparse collections can be monitored
+	 * without treating missing fields as errors.
+	 * A field is only present if it has a non-null value; for a field retrieved through a
+	 * projection expression (see {@link #setProjected(boolean)}) at least one of the projected values has to be non-null.
+	 */
+	public static class Field {
+		private final String path;
+		private final String key;
+		private final String name;
+		private final AtomicLong present = new AtomicLong();
+		private final AtomicLong missing = new AtomicLong();
+		private boolean projected = false;
+
+		/**
+		 * @param path field in MongoDB (dot notation)
+		 * @param keySeparator replaces the dots in the key of the projected document
+		 */
+		public Field(String path, String keySeparator) {
+			this.path = path;
+			this.key = path.replace(".", keySeparator);
+			this.name = path.substring(path.lastIndexOf('.') + 1);
+		}
+
+		/**
+		 * @return field in MongoDB (dot notation)
+		 */
+		public String getPath() {
+			return this.path;
+		}
+
+		/**
+		 * @return key of the field in the projected document
+		 */
+		public String getKey() {
+			return this.key;
+		}
+
+		/**
+		 * @return segment name (last part of the path)
+		 */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * @param projected whether the field is retrieved as sub-document built by a projection
+		 * expression (e.g. with $map), which is there (with null values) even if the field is missing
+		 */
+		public void setProjected(boolean projected) {
+			this.projected = projected;
+		}
+
+		/**
+		 * @param doc a projected document
+		 * @return value of the field, null if missing
+		 */
+		public Object get(DBObject doc) {
+			Object value = doc.get(this.key);
+			if (this.projected && value instanceof DBObject && !hasValue((DBObject) value)) {
+				value = null;
+			}
+			if (value == null) {
+				this.missing.incrementAndGet();
+			} else {
+				this.present.incrementAndGet();
+			}
+			return value;
+		}
+
+		/**
+		 * @return number of lookups that found the field
+		 */
+		public long getPresent() {
+			return this.present.get();
+		}
+
+		/**
+		 * @return number of lookups that didn't find the field
+		 */
+		public long getMissing() {
+			return this.missing.get();
+		}
+	}
+
+	/**
+	 * @param o a document or sub-document
+	 * @param keys the required keys
+	 * @return whether all keys have a (non-null) value
+	 */
+	public static boolean hasFields(DBObject o, String[] keys) {
+		for (String key : keys) {
+			if (o.get(key) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param o a document or sub-document
+	 * @return whether any key has a (non-null) value
+	 */
+	static boolean hasValue(DBObject o) {
+		for (String key : o.keySet()) {
+			if (o.get(key) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param paths fields in MongoDB (dot notation)
+	 * @param keySeparator replaces the dots in the keys of the projected document
+	 * @return the fields
+	 */
+	public static Field[] compile(String[] paths, String keySeparator) {
+		Field[] fields = new Field[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			fields[i] = new Field(paths[i], keySeparator);
+		}
+		return fields;
+	}
+
+	private final StringBuilder text = new StringBuilder();
+	private int segmentBegin = 0;
+
+	/**
+	 * start a new document
+	 */
+	public void reset() {
+		this.text.setLength(0);
+		this.segmentBegin = 0;
+	}
+
+	/**
+	 * start a new segment, separated from the previous one
+	 * @return offset of the segment
+	 */
+	public int beginSegment() {
+		if (this.text.length() > 0) {
+			this.text.append(SEGMENT_SEPARATOR);
+		}
+		this.segmentBegin = this.text.length();
+		return this.segmentBegin;
+	}
+
+	/**
+	 * @param s text to append
+	 * @return offset of the appended text
+	 */
+	public int append(String s) {
+		int begin = this.text.length();
+		this.text.append(s);
+		return begin;
+	}
+
+	/**
+	 * append a token, separated from the previous token of the segment
+	 * @param s text of the token
+	 * @param separator separator from the previous token
+	 * @return offset of the token
+	 */
+	public int appendToken(String s, String separator) {
+		if (this.text.length() > this.segmentBegin) {
+			this.text.append(separator);
+		}
+		return append(s);
+	}
+
+	/**
+	 * @return current length of the document text
+	 */
+	public int length() {
+		return this.text.length();
+	}
+
+	/**
+	 * create the Segment annotation for the text appended since {@link #beginSegment()}
+	 * @param jcas the CAS
+	 * @param field the field the segment was read from
+	 * @return the annotation (already added to the indexes)
+	 */
+	public Segment endSegment(JCas jcas, Field field) {
+		Segment segAnno = new Segment(jcas);
+		segAnno.setBegin(this.segmentBegin);
+		segAnno.setEnd(this.text.length());
+		segAnno.setSourceField(field.getPath());
+		segAnno.setName(field.getName());
+		segAnno.addToIndexes();
+		return segAnno;
+	}
+
+	/**
+	 * @return the document text
+	 */
+	public String getText() {
+		return this.text.toString();
+	}
+
+}
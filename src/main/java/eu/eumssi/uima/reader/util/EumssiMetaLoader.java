@@ -1,36 +1,84 @@
 package eu.eumssi.uima.reader.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.apache.uima.jcas.JCas;
 
 import com.mongodb.DBObject;
 
 import eu.eumssi.uima.ts.SourceMeta;
 
+/**
+ * Loads the standard metadata of a document into a SourceMeta annotation.
+ * Missing metadata is left empty and counted per field.
+ * @author jgrivolla
+ *
+ */
 public class EumssiMetaLoader {
-	public static SourceMeta getMeta(JCas jcas, DBObject doc) {
+
+	private final DocumentBuilder.Field language;
+	private final DocumentBuilder.Field headline;
+	private final DocumentBuilder.Field datePublished;
+
+	/**
+	 * @param keySeparator replaces the dots in the keys of the projected documents
+	 */
+	public EumssiMetaLoader(String keySeparator) {
+		this.language = new DocumentBuilder.Field("lang", keySeparator);
+		this.headline = new DocumentBuilder.Field("meta.source.headline", keySeparator);
+		this.datePublished = new DocumentBuilder.Field("meta.source.datePublished", keySeparator);
+	}
+
+	/**
+	 * @return the metadata fields, with their counters
+	 */
+	public DocumentBuilder.Field[] getFields() {
+		return new DocumentBuilder.Field[] { this.language, this.headline, this.datePublished };
+	}
+
+	/**
+	 * @param metaFields the metadata fields retrieved from MongoDB (the language is always retrieved)
+	 * @return the metadata fields that are retrieved, with their counters
+	 */
+	public List<DocumentBuilder.Field> getFields(String[] metaFields) {
+		List<String> requested = metaFields == null ? new ArrayList<String>() : Arrays.asList(metaFields);
+		List<DocumentBuilder.Field> fields = new ArrayList<DocumentBuilder.Field>();
+		fields.add(this.language);
+		for (DocumentBuilder.Field field : new DocumentBuilder.Field[] { this.headline, this.datePublished }) {
+			if (requested.contains(field.getPath())) {
+				fields.add(field);
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * @param jcas the CAS (document text should already be set)
+	 * @param doc the projected document
+	 * @return the metadata annotation (not yet added to the indexes)
+	 */
+	public SourceMeta getMeta(JCas jcas, DBObject doc) {
 		String documentId = doc.get("id").toString(); // hopefully correct conversion to string
 		SourceMeta metadata = new SourceMeta(jcas);
 		metadata.setDocumentId(documentId);
-		try {
-			String lang = doc.get("lang").toString(); // should be a String field anyway
-			jcas.setDocumentLanguage(lang);
-			metadata.setLanguage(lang);
-		} catch (NullPointerException e) {
-			// just leave language empty if document doesn't have one
+		Object lang = this.language.get(doc);
+		if (lang != null) { // just leave language empty if document doesn't have one
+			jcas.setDocumentLanguage(lang.toString()); // should be a String field anyway
+			metadata.setLanguage(lang.toString());
 		}
 		if (metadata.getView().getDocumentText() != null) {
 			metadata.setBegin(0);
 			metadata.setEnd(metadata.getView().getDocumentText().length());
 		}
-		try {
-			metadata.setDocumentTitle(doc.get("meta###source###headline").toString()); // should be a String field anyway
-		} catch (NullPointerException e) {
-			// just leave text empty if document doesn't have one
+		Object title = this.headline.get(doc);
+		if (title != null) { // just leave text empty if document doesn't have one
+			metadata.setDocumentTitle(title.toString()); // should be a String field anyway
 		}
-		try {
-			metadata.setDatePublished(doc.get("meta###source###datePublished").toString());
-		} catch (NullPointerException e) {
-			// just leave text empty if document doesn't have one
+		Object date = this.datePublished.get(doc);
+		if (date != null) {
+			metadata.setDatePublished(date.toString());
 		}
 		return metadata;
 	}
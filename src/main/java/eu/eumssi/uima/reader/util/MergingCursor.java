@@ -0,0 +1,210 @@
+package eu.eumssi.uima.reader.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Merges several MongoDB cursors into a single iterator.
+ * Each source cursor is drained by its own background thread into a bounded
+ * hand-off queue, so the consuming thread only has to wait when all sources
+ * are slower than the processing pipeline.
+ * The order of documents between different sources is not preserved.
+ * With a single source this acts as a prefetching stage that overlaps
+ * MongoDB round-trips (and BSON decoding) with the processing of earlier documents.
+ * An optional limit on the total number of documents stops all sources once it is reached.
+ * @author jgrivolla
+ *
+ */
+public class MergingCursor implements Iterator<DBObject>, Closeable {
+
+	private static final Logger logger = Logger.getLogger(MergingCursor.class.toString());
+
+	/** marks the end of one source in the queue */
+	private static final DBObject END = new BasicDBObject();
+
+	private final BlockingQueue<DBObject> queue;
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private final List<? extends Iterator<DBObject>> sources;
+	/** number of sources that haven't signalled their end yet */
+	private int running;
+	private volatile boolean closed = false;
+	private volatile RuntimeException failure = null;
+	/** maximum number of documents taken from all sources together */
+	private final long limit;
+	private final AtomicLong taken = new AtomicLong();
+	private DBObject next = null;
+
+	// statistics (only updated by the consuming thread)
+	private long stallCount = 0;
+	private long stallNanos = 0;
+
+	/**
+	 * @param sources the cursors to merge (will be closed when exhausted, if {@link Closeable})
+	 * @param capacity maximum number of documents waiting in the hand-off queue
+	 * @param name name prefix for the worker threads
+	 */
+	public MergingCursor(List<? extends Iterator<DBObject>> sources, int capacity, String name) {
+		this(sources, capacity, name, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param sources the cursors to merge (will be closed when exhausted, if {@link Closeable})
+	 * @param capacity maximum number of documents waiting in the hand-off queue
+	 * @param name name prefix for the worker threads
+	 * @param limit maximum number of documents taken from all sources together
+	 */
+	public MergingCursor(List<? extends Iterator<DBObject>> sources, int capacity, String name, long limit) {
+		this.sources = sources;
+		this.limit = limit;
+		this.queue = new ArrayBlockingQueue<DBObject>(Math.max(capacity, 1));
+		this.running = sources.size();
+		int i = 0;
+		for (final Iterator<DBObject> source : sources) {
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					drain(source);
+				}
+			}, name + "-" + i++);
+			worker.setDaemon(true);
+			this.workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * copy all documents from the source into the queue (run by worker threads)
+	 * @param source the cursor to drain
+	 */
+	private void drain(Iterator<DBObject> source) {
+		try {
+			while (!this.closed && source.hasNext()) {
+				if (this.taken.incrementAndGet() > this.limit) { // enough documents from all sources
+					break;
+				}
+				this.queue.put(source.next());
+			}
+		} catch (InterruptedException e) {
+			// closed while waiting for space in the queue
+		} catch (RuntimeException e) {
+			logger.severe(e.toString());
+			this.failure = e;
+		} finally {
+			closeSource(source);
+			if (!this.closed) { // nobody is waiting after close(), and the queue may be full
+				try {
+					this.queue.put(END);
+				} catch (InterruptedException e) {
+					// closed while waiting for space in the queue
+				}
+			}
+		}
+	}
+
+	private static void closeSource(Iterator<DBObject> source) {
+		if (source instanceof Closeable) {
+			try {
+				((Closeable) source).close();
+			} catch (IOException e) {
+				logger.warning(e.toString());
+			}
+		}
+	}
+
+	public boolean hasNext() {
+		if (this.next != null) {
+			return true;
+		}
+		try {
+			while (this.running > 0 && !this.closed) { // no more END markers after close()
+				DBObject doc = this.queue.poll();
+				if (doc == null) { // queue ran empty, need to wait for the sources
+					long start = System.nanoTime();
+					doc = this.queue.take();
+					this.stallNanos += System.nanoTime() - start;
+					this.stallCount++;
+				}
+				if (doc == END) {
+					this.running--;
+					if (this.failure != null) {
+						throw this.failure;
+					}
+				} else {
+					this.next = doc;
+					return true;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for documents", e);
+		}
+		return false;
+	}
+
+	public DBObject next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		DBObject doc = this.next;
+		this.next = null;
+		return doc;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return number of documents currently waiting in the queue
+	 */
+	public int getQueueSize() {
+		return this.queue.size();
+	}
+
+	/**
+	 * @return maximum number of documents waiting in the queue
+	 */
+	public int getCapacity() {
+		return this.queue.size() + this.queue.remainingCapacity();
+	}
+
+	/**
+	 * @return number of times the consumer had to wait for an empty queue
+	 */
+	public long getStallCount() {
+		return this.stallCount;
+	}
+
+	/**
+	 * @return total time (in milliseconds) the consumer spent waiting for an empty queue
+	 */
+	public long getStallMillis() {
+		return this.stallNanos / 1000000;
+	}
+
+	/**
+	 * stop all worker threads and close the source cursors, {@link #hasNext()} returns false afterwards
+	 */
+	public void close() {
+		this.closed = true;
+		this.next = null;
+		for (Thread worker : this.workers) {
+			worker.interrupt();
+		}
+		this.queue.clear(); // release workers that are still blocked on a full queue
+		for (Iterator<DBObject> source : this.sources) {
+			closeSource(source);
+		}
+	}
+
+}
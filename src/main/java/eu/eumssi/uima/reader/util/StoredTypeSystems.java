@@ -0,0 +1,100 @@
+package eu.eumssi.uima.reader.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.uima.UIMAFramework;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.apache.uima.util.InvalidXMLException;
+import org.apache.uima.util.XMLInputSource;
+import org.xml.sax.SAXException;
+
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
+
+/**
+ * Type systems that binary CASes were serialized against, stored once in GridFS
+ * (as type system descriptor named typesystem/&lt;SHA-1 of the descriptor&gt;).
+ * Binary form 6 can only be deserialized with the type system it was written with,
+ * which differs from the one of the reading pipeline if types or features were left out.
+ * @author jgrivolla
+ *
+ */
+public class StoredTypeSystems {
+
+	/** field of the stored CAS holding the id of its type system */
+	public static final String FIELD_TYPESYSTEM = "typeSystem";
+
+	private static final String FILENAME_PREFIX = "typesystem/";
+
+	/** loaded type systems by id */
+	private static final Map<String, TypeSystem> loaded = new HashMap<String, TypeSystem>();
+
+	private StoredTypeSystems() {
+	}
+
+	/**
+	 * store the type system, unless it is already stored
+	 * @param gridFS where to store it
+	 * @param tsd the type system
+	 * @return id of the type system
+	 * @throws IOException
+	 * @throws SAXException
+	 */
+	public static String store(GridFS gridFS, TypeSystemDescription tsd) throws IOException, SAXException {
+		ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		tsd.toXML(xml);
+		byte[] bytes = xml.toByteArray();
+		String id;
+		try {
+			StringBuilder hex = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-1").digest(bytes)) {
+				hex.append(String.format("%02x", b));
+			}
+			id = hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		if (gridFS.findOne(FILENAME_PREFIX + id) == null) {
+			GridFSInputFile file = gridFS.createFile(bytes);
+			file.setFilename(FILENAME_PREFIX + id);
+			file.save();
+		}
+		return id;
+	}
+
+	/**
+	 * load a stored type system (cached for the whole JVM)
+	 * @param gridFS where it is stored
+	 * @param id id of the type system
+	 * @return the type system
+	 * @throws IOException if it is missing or broken
+	 */
+	public static synchronized TypeSystem load(GridFS gridFS, String id) throws IOException {
+		TypeSystem ts = loaded.get(id);
+		if (ts == null) {
+			GridFSDBFile file = gridFS.findOne(FILENAME_PREFIX + id);
+			if (file == null) {
+				throw new IOException("missing type system "+id);
+			}
+			try {
+				TypeSystemDescription tsd = UIMAFramework.getXMLParser().parseTypeSystemDescription(
+						new XMLInputSource(file.getInputStream(), null));
+				ts = CasCreationUtils.createCas(tsd, null, null).getTypeSystem();
+			} catch (InvalidXMLException | ResourceInitializationException e) {
+				throw new IOException(e);
+			}
+			loaded.put(id, ts);
+		}
+		return ts;
+	}
+
+}
@@ -0,0 +1,240 @@
+package eu.eumssi.uima.reader.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * SAX filter that drops the views and feature structures of types that are not selected from XMI,
+ * so that they are neither written nor deserialized.
+ * It can be put between XmiCasSerializer and the XML writer, or between the XML parser
+ * and the handler of XmiCasDeserializer.
+ * Dropped elements are skipped as a whole, including their content. References to them
+ * remain in the XMI, so it has to be deserialized in lenient mode.
+ * @author jgrivolla
+ *
+ */
+public class XmiFilter extends XMLFilterImpl {
+
+	/** field of a stored CAS indicating that views or types were dropped, so that it has to be loaded leniently */
+	public static final String FIELD_PARTIAL = "partial";
+
+	private static final String XMLNS = "xmlns:";
+
+	/** types that are kept with their subtypes, regardless of the selection */
+	private static final Set<String> ALWAYS_SELECTED = Collections.singleton(CAS.TYPE_NAME_DOCUMENT_ANNOTATION);
+
+	private final Set<String> includeViews;
+	private final Set<String> excludeViews;
+	private final Set<String> includeTypes;
+	private final Set<String> excludeTypes;
+	private final TypeSystem typeSystem;
+
+	/** namespace prefix -&gt; package of the types */
+	private final Map<String, String> packages = new HashMap<String, String>();
+	/** xmi:ids of the sofas of dropped views */
+	private final Set<String> droppedSofas = new HashSet<String>();
+	private int depth = 0;
+	/** nesting level within a dropped element (0 = not dropping) */
+	private int skipDepth = 0;
+	private long dropped = 0;
+
+	/**
+	 * @param includeViews views to keep (all if empty)
+	 * @param excludeViews views to drop
+	 * @param includeTypes types to keep, with their subtypes (all if empty), built-in uima.cas types
+	 * and the document annotation (holding the language) with its subtypes are always kept
+	 * @param excludeTypes types to drop, with their subtypes
+	 * @param typeSystem type system used to find subtypes (only exact type names are compared if null)
+	 */
+	public XmiFilter(Collection<String> includeViews, Collection<String> excludeViews,
+			Collection<String> includeTypes, Collection<String> excludeTypes, TypeSystem typeSystem) {
+		this.includeViews = asSet(includeViews);
+		this.excludeViews = asSet(excludeViews);
+		this.includeTypes = asSet(includeTypes);
+		this.excludeTypes = asSet(excludeTypes);
+		this.typeSystem = typeSystem;
+	}
+
+	/**
+	 * @param values comma separated values, or null
+	 * @return the values
+	 */
+	public static List<String> split(String values) {
+		List<String> list = new ArrayList<String>();
+		if (values != null) {
+			for (String value : values.split(",")) {
+				if (!value.trim().isEmpty()) {
+					list.add(value.trim());
+				}
+			}
+		}
+		return list;
+	}
+
+	private static Set<String> asSet(Collection<String> values) {
+		return values == null ? Collections.<String>emptySet() : new HashSet<String>(values);
+	}
+
+	/**
+	 * @return whether the filter drops anything at all
+	 */
+	public boolean isActive() {
+		return !(this.includeViews.isEmpty() && this.excludeViews.isEmpty()
+				&& this.includeTypes.isEmpty() && this.excludeTypes.isEmpty());
+	}
+
+	/**
+	 * @return number of elements dropped so far
+	 */
+	public long getDropped() {
+		return this.dropped;
+	}
+
+	/**
+	 * prepare for the next document
+	 */
+	public void reset() {
+		this.packages.clear();
+		this.droppedSofas.clear();
+		this.depth = 0;
+		this.skipDepth = 0;
+	}
+
+	private boolean isViewSelected(String view) {
+		return (this.includeViews.isEmpty() || this.includeViews.contains(view))
+				&& !this.excludeViews.contains(view);
+	}
+
+	/**
+	 * @param typeName full name of a type
+	 * @return whether feature structures of the type are kept
+	 */
+	public boolean isTypeSelected(String typeName) {
+		if (typeName.startsWith("uima.cas.") // Sofa, View, NULL, arrays, lists
+				|| matches(typeName, ALWAYS_SELECTED)) { // document language, also e.g. DocumentMetaData
+			return true;
+		}
+		return (this.includeTypes.isEmpty() || matches(typeName, this.includeTypes))
+				&& !matches(typeName, this.excludeTypes);
+	}
+
+	/**
+	 * @return whether the type or one of its supertypes is in the set
+	 */
+	private boolean matches(String typeName, Set<String> types) {
+		if (types.contains(typeName)) {
+			return true;
+		}
+		if (this.typeSystem == null) {
+			return false;
+		}
+		Type type = this.typeSystem.getType(typeName);
+		while (type != null) {
+			if (types.contains(type.getName())) {
+				return true;
+			}
+			type = this.typeSystem.getParent(type);
+		}
+		return false;
+	}
+
+	/**
+	 * @param qName element name, e.g. type4:NamedEntity
+	 * @return full type name, e.g. de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity
+	 */
+	private String typeName(String qName) {
+		int colon = qName.indexOf(':');
+		if (colon < 0) {
+			return qName;
+		}
+		String pkg = this.packages.get(qName.substring(0, colon));
+		return pkg == null ? qName.substring(colon + 1) : pkg + "." + qName.substring(colon + 1);
+	}
+
+	/**
+	 * @param prefix namespace prefix
+	 * @param uri namespace, e.g. http:///de/tudarmstadt/ukp/dkpro/core/api/ner/type.ecore
+	 */
+	private void addNamespace(String prefix, String uri) {
+		if (uri.startsWith("http:///") && uri.endsWith(".ecore")) {
+			this.packages.put(prefix, uri.substring(8, uri.length() - 6).replace('/', '.'));
+		}
+	}
+
+	@Override
+	public void startPrefixMapping(String prefix, String uri) throws SAXException {
+		addNamespace(prefix, uri);
+		super.startPrefixMapping(prefix, uri);
+	}
+
+	@Override
+	public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+		if (this.skipDepth > 0) {
+			this.skipDepth++;
+			return;
+		}
+		if (this.depth == 0) { // xmi:XMI, namespaces are attributes when not parsing namespace-aware
+			for (int i = 0; i < atts.getLength(); i++) {
+				if (atts.getQName(i).startsWith(XMLNS)) {
+					addNamespace(atts.getQName(i).substring(XMLNS.length()), atts.getValue(i));
+				}
+			}
+		} else if (this.depth == 1) { // feature structure
+			String sofa = atts.getValue("sofa");
+			boolean drop;
+			if (CAS.TYPE_NAME_SOFA.equals(typeName(qName))) {
+				drop = !isViewSelected(atts.getValue("sofaID"));
+				if (drop) {
+					this.droppedSofas.add(atts.getValue("xmi:id"));
+				}
+			} else {
+				drop = (sofa != null && this.droppedSofas.contains(sofa)) || !isTypeSelected(typeName(qName));
+			}
+			if (drop) {
+				this.skipDepth = 1;
+				this.dropped++;
+				return;
+			}
+		}
+		this.depth++;
+		super.startElement(uri, localName, qName, atts);
+	}
+
+	@Override
+	public void endElement(String uri, String localName, String qName) throws SAXException {
+		if (this.skipDepth > 0) {
+			this.skipDepth--;
+			return;
+		}
+		this.depth--;
+		super.endElement(uri, localName, qName);
+	}
+
+	@Override
+	public void characters(char[] ch, int start, int length) throws SAXException {
+		if (this.skipDepth == 0) {
+			super.characters(ch, start, length);
+		}
+	}
+
+	@Override
+	public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+		if (this.skipDepth == 0) {
+			super.ignorableWhitespace(ch, start, length);
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+package eu.eumssi.uima.resource;
+
+import java.net.UnknownHostException;
+
+import org.apache.uima.fit.component.Resource_ImplBase;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
+
+/**
+ * External resource to configure the connection pool of the shared MongoClients.
+ * Readers and consumers share clients through {@link SharedMongoClients} in any case,
+ * binding this resource only changes the options used to create them.
+ * @author jgrivolla
+ *
+ */
+public class MongoClientResource extends Resource_ImplBase {
+
+	/**
+	 * maximum number of connections per host
+	 */
+	public static final String PARAM_POOLSIZE = "PoolSize";
+	@ConfigurationParameter(name=PARAM_POOLSIZE, mandatory=false, defaultValue="100",
+			description="maximum number of connections per host")
+	private Integer poolSize;
+
+	/**
+	 * connection timeout in milliseconds (0 = none)
+	 */
+	public static final String PARAM_CONNECT_TIMEOUT = "ConnectTimeout";
+	@ConfigurationParameter(name=PARAM_CONNECT_TIMEOUT, mandatory=false, defaultValue="10000",
+			description="connection timeout in milliseconds (0 = none)")
+	private Integer connectTimeout;
+
+	/**
+	 * socket timeout in milliseconds (0 = none)
+	 */
+	public static final String PARAM_SOCKET_TIMEOUT = "SocketTimeout";
+	@ConfigurationParameter(name=PARAM_SOCKET_TIMEOUT, mandatory=false, defaultValue="0",
+			description="socket timeout in milliseconds (0 = none)")
+	private Integer socketTimeout;
+
+	/**
+	 * read preference (primary, primaryPreferred, secondary, secondaryPreferred, nearest)
+	 */
+	public static final String PARAM_READ_PREFERENCE = "ReadPreference";
+	@ConfigurationParameter(name=PARAM_READ_PREFERENCE, mandatory=false, defaultValue="primary",
+			description="read preference (primary, primaryPreferred, secondary, secondaryPreferred, nearest)")
+	private String readPreference;
+
+	/**
+	 * get the shared client for the URI, created with the options of this resource
+	 * @param uri URI of the MongoDB service
+	 * @return the shared client
+	 * @throws UnknownHostException if the host can't be resolved
+	 * @see SharedMongoClients#acquire(String, MongoClientOptions.Builder)
+	 */
+	public MongoClient acquire(String uri) throws UnknownHostException {
+		MongoClientOptions.Builder options = MongoClientOptions.builder()
+				.connectionsPerHost(this.poolSize)
+				.connectTimeout(this.connectTimeout)
+				.socketTimeout(this.socketTimeout)
+				.readPreference(ReadPreference.valueOf(this.readPreference));
+		return SharedMongoClients.acquire(uri, options);
+	}
+
+}
@@ -0,0 +1,81 @@
+package eu.eumssi.uima.resource;
+
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+
+/**
+ * JVM-wide registry of MongoClients, one per URI, so that all readers and consumers
+ * (and all their replicas) talking to the same server share one connection pool.
+ * Clients are reference-counted and closed when the last component releases them.
+ * The options of the first component acquiring a client are used.
+ * @author jgrivolla
+ *
+ */
+public class SharedMongoClients {
+
+	private static final Logger logger = Logger.getLogger(SharedMongoClients.class.toString());
+
+	private static final Map<String, MongoClient> clients = new HashMap<String, MongoClient>();
+	private static final Map<String, Integer> references = new HashMap<String, Integer>();
+
+	private SharedMongoClients() {
+	}
+
+	/**
+	 * get the shared client for the URI, creating it with default options if needed
+	 * @param uri URI of the MongoDB service
+	 * @return the shared client
+	 * @throws UnknownHostException if the host can't be resolved
+	 */
+	public static MongoClient acquire(String uri) throws UnknownHostException {
+		return acquire(uri, null);
+	}
+
+	/**
+	 * get the shared client for the URI, creating it if needed
+	 * @param uri URI of the MongoDB service (options in the URI take precedence)
+	 * @param options options used if the client is created (null for defaults)
+	 * @return the shared client
+	 * @throws UnknownHostException if the host can't be resolved
+	 */
+	public static synchronized MongoClient acquire(String uri, MongoClientOptions.Builder options) throws UnknownHostException {
+		MongoClient client = clients.get(uri);
+		if (client != null && options != null
+				&& !new MongoClientURI(uri, options).getOptions().equals(client.getMongoClientOptions())) {
+			logger.warning("MongoClient for "+uri+" already exists with different options, ignoring the requested ones");
+		}
+		if (client == null) {
+			client = new MongoClient(new MongoClientURI(uri, options == null ? MongoClientOptions.builder() : options));
+			clients.put(uri, client);
+			references.put(uri, 0);
+			logger.info("created MongoClient for "+uri);
+		}
+		references.put(uri, references.get(uri) + 1);
+		return client;
+	}
+
+	/**
+	 * release a client obtained with {@link #acquire(String)}, closing it if it's no longer used
+	 * @param uri URI of the MongoDB service
+	 */
+	public static synchronized void release(String uri) {
+		Integer count = references.get(uri);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			references.put(uri, count - 1);
+		} else {
+			references.remove(uri);
+			clients.remove(uri).close();
+			logger.info("closed MongoClient for "+uri);
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+package eu.eumssi.uima.resource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.apache.uima.fit.component.Resource_ImplBase;
+import org.apache.uima.fit.descriptor.ConfigurationParameter;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Shared resource that merges the updates of several consumers for the same document,
+ * so that each document is written once instead of once per consumer.
+ * Every participating consumer registers for its collection under its role (its name in the
+ * aggregate, shared by the replicas of a pipeline run in parallel), and contributes exactly one
+ * update per document, or an explicit null update if it has nothing to write.
+ * Once all roles have contributed, the merged update is handed back to the last one for writing.
+ * Documents that some participant never contributed to (e.g. because it failed) are handed out incomplete
+ * once too many documents are waiting or they have waited too long, so that they are still written.
+ * $addToSet values are combined with $each, for all other operators ($set, ...)
+ * fields of later contributions override earlier ones.
+ * <p>
+ * Bind the same resource description to all consumers of an aggregate, e.g. with
+ * ExternalResourceFactory.createExternalResourceDescription(WriteCoalescer.class).
+ * @author jgrivolla
+ *
+ */
+public class WriteCoalescer extends Resource_ImplBase {
+
+	private static final Logger logger = Logger.getLogger(WriteCoalescer.class.toString());
+
+	/**
+	 * maximum number of incomplete documents per collection, older ones are handed out incomplete
+	 */
+	public static final String PARAM_MAX_PENDING = "MaxPending";
+	@ConfigurationParameter(name=PARAM_MAX_PENDING, mandatory=false, defaultValue="1000",
+			description="maximum number of incomplete documents per collection, older ones are written without waiting for all consumers")
+	private Integer maxPending;
+
+	/**
+	 * maximum time (ms) a document waits for the other consumers
+	 */
+	public static final String PARAM_MAX_WAIT = "MaxWaitMillis";
+	@ConfigurationParameter(name=PARAM_MAX_WAIT, mandatory=false, defaultValue="60000",
+			description="maximum time (ms) a document waits for the other consumers before it is written anyway")
+	private Integer maxWaitMillis;
+
+	/** roles of the participating consumers per collection */
+	private final Map<String, Set<String>> participants = new HashMap<String, Set<String>>();
+	/** partially merged updates per collection and document, oldest first */
+	private final Map<String, Map<String, Contribution>> pending = new HashMap<String, Map<String, Contribution>>();
+
+	/**
+	 * the merged update of a document, with the actions to run once it is stored
+	 */
+	public static class Contribution {
+		final DBObject update = new BasicDBObject();
+		final List<Runnable> onStored = new ArrayList<Runnable>();
+		final Set<String> contributors = new HashSet<String>();
+		final long since = System.currentTimeMillis();
+		long bytes = 0;
+
+		/**
+		 * @return the merged update
+		 */
+		public DBObject getUpdate() {
+			return this.update;
+		}
+
+		/**
+		 * @return actions of the participants to run once the update is stored
+		 */
+		public List<Runnable> getOnStored() {
+			return this.onStored;
+		}
+
+		/**
+		 * @return size of the large values of all contributions (e.g. serialized CASes)
+		 */
+		public long getBytes() {
+			return this.bytes;
+		}
+
+		/**
+		 * @return whether no participant contributed anything to write
+		 */
+		public boolean isEmpty() {
+			return this.update.keySet().isEmpty();
+		}
+	}
+
+	/**
+	 * register a consumer writing to the given collection;
+	 * replicas of the same consumer register the same role and count as one participant
+	 * @param collection full name of the collection
+	 * @param role name of the consumer in the aggregate, to be passed to
+	 * {@link #contribute(String, String, String, DBObject, long, Runnable)}
+	 */
+	public synchronized void register(String collection, String role) {
+		Set<String> roles = this.participants.get(collection);
+		if (roles == null) {
+			roles = new HashSet<String>();
+			this.participants.put(collection, roles);
+			this.pending.put(collection, new LinkedHashMap<String, Contribution>());
+		}
+		roles.add(role);
+	}
+
+	/**
+	 * Add a consumer's update for a document.
+	 * @param collection full name of the collection
+	 * @param role role of the consumer, as passed to {@link #register(String, String)}
+	 * @param documentId id of the document
+	 * @param update the update of this consumer, null if it has nothing to write for this document
+	 * @param bytes size of large values in the update (e.g. serialized CASes)
+	 * @param onStored action to run once the merged update is stored (null for none)
+	 * @return merged updates by document id that are ready to be written: this document once all
+	 * participants have contributed, and documents that waited too long (usually empty)
+	 */
+	public synchronized Map<String, Contribution> contribute(String collection, String role, String documentId,
+			DBObject update, long bytes, Runnable onStored) {
+		Map<String, Contribution> ready = new LinkedHashMap<String, Contribution>();
+		Map<String, Contribution> documents = this.pending.get(collection);
+		Contribution contribution = documents.get(documentId);
+		if (contribution == null) {
+			contribution = new Contribution();
+			documents.put(documentId, contribution);
+		}
+		if (update != null) {
+			merge(contribution.update, update);
+			contribution.bytes += bytes;
+		}
+		if (onStored != null) {
+			contribution.onStored.add(onStored);
+		}
+		contribution.contributors.add(role);
+		if (contribution.contributors.containsAll(this.participants.get(collection))) {
+			documents.remove(documentId);
+			ready.put(documentId, contribution);
+		}
+		// hand out documents some participant skipped
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Contribution>> it = documents.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Contribution> oldest = it.next();
+			if (documents.size() <= this.maxPending && now - oldest.getValue().since < this.maxWaitMillis) {
+				break;
+			}
+			logger.warning("document "+oldest.getKey()+" only got updates from "
+					+oldest.getValue().contributors+", writing it anyway");
+			ready.put(oldest.getKey(), oldest.getValue());
+			it.remove();
+		}
+		return ready;
+	}
+
+	/**
+	 * Remove the updates of documents some participant never contributed to
+	 * (e.g. because it failed), so that they can be written anyway.
+	 * @param collection full name of the collection
+	 * @return merged updates by document id
+	 */
+	public synchronized Map<String, Contribution> drain(String collection) {
+		Map<String, Contribution> updates = new LinkedHashMap<String, Contribution>();
+		Map<String, Contribution> documents = this.pending.get(collection);
+		if (documents != null) {
+			updates.putAll(documents);
+			documents.clear();
+		}
+		if (!updates.isEmpty()) {
+			logger.warning(updates.size()+" documents didn't get updates from all consumers");
+		}
+		return updates;
+	}
+
+	/**
+	 * merge an update into another one
+	 * @param target the merged update
+	 * @param update the update to add
+	 */
+	static void merge(DBObject target, DBObject update) {
+		for (String operator : update.keySet()) {
+			DBObject fields = (DBObject) update.get(operator);
+			DBObject merged = (DBObject) target.get(operator);
+			if (merged == null) {
+				merged = new BasicDBObject();
+				target.put(operator, merged);
+			}
+			for (String field : fields.keySet()) {
+				Object value = fields.get(field);
+				if ("$addToSet".equals(operator)) {
+					List<Object> values = eachValues(merged.get(field));
+					values.addAll(eachValues(value));
+					merged.put(field, new BasicDBObject("$each", values));
+				} else {
+					merged.put(field, value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param value an $addToSet value, either plain or as {$each: [...]}
+	 * @return the list of values to add
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<Object> eachValues(Object value) {
+		List<Object> values = new BasicDBList();
+		if (value instanceof DBObject && ((DBObject) value).containsField("$each")) {
+			values.addAll((List<Object>) ((DBObject) value).get("$each"));
+		} else if (value != null) {
+			values.add(value);
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,8 @@
+/**
+ * shared resources for readers and consumers
+ */
+/**
+ * @author jgrivolla
+ *
+ */
+package eu.eumssi.uima.resource;
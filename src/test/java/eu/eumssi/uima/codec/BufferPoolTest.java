@@ -0,0 +1,57 @@
+package eu.eumssi.uima.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link BufferPool}
+ * 
+ * @author jgrivolla
+ */
+public class BufferPoolTest {
+
+	@Test
+	public void growsAndKeepsContent() {
+		BufferPool.Buffer buffer = BufferPool.take();
+		byte[] data = new byte[200000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		buffer.write(data, 0, 100);
+		buffer.write(data, 100, data.length - 100);
+		assertEquals(data.length, buffer.size());
+		assertEquals(1 << 18, buffer.array().length);
+		assertArrayEquals(data, buffer.toByteArray());
+		buffer.release();
+	}
+
+	@Test
+	public void releasedArrayIsReused() {
+		BufferPool.Buffer first = BufferPool.take();
+		byte[] array = first.array();
+		first.release();
+		first.release(); // only once
+		BufferPool.Buffer second = BufferPool.take();
+		assertSame(array, second.array());
+		assertNotSame(array, BufferPool.take().array());
+		second.release();
+	}
+
+	@Test
+	public void releasedOnOtherThreadReturnsToOwner() throws Exception {
+		final BufferPool.Buffer buffer = BufferPool.take();
+		byte[] array = buffer.array();
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				buffer.release();
+			}
+		});
+		writer.start();
+		writer.join();
+		assertSame(array, BufferPool.take().array());
+	}
+}
@@ -0,0 +1,69 @@
+package eu.eumssi.uima.reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Date;
+import java.util.UUID;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+/**
+ * Tests for the _id interpolation used to partition a query ({@link MongoReaderBase#interpolateId(Object, Object, double)})
+ * 
+ * @author jgrivolla
+ */
+public class PartitionBoundariesTest {
+
+	@Test
+	public void numbers() {
+		assertEquals(25L, MongoReaderBase.interpolateId(0, 100L, 0.25));
+		assertEquals(1.5, MongoReaderBase.interpolateId(1.0, 2, 0.5));
+	}
+
+	@Test
+	public void objectIds() {
+		ObjectId min = new ObjectId(new Date(1000000000000L));
+		ObjectId max = new ObjectId(new Date(1000000100000L));
+		ObjectId middle = (ObjectId) MongoReaderBase.interpolateId(min, max, 0.5);
+		assertEquals(1000000050, middle.getTimestamp());
+	}
+
+	@Test
+	public void uuidsFollowTheStoredByteOrder() {
+		UUID previous = UUID.fromString("00000000-0000-0000-0000-000000000000");
+		UUID max = UUID.fromString("ffffffff-ffff-ffff-ffff-ffffffffffff");
+		for (int i = 1; i < 8; i++) {
+			UUID id = (UUID) MongoReaderBase.interpolateId(previous, max, 1.0 / (8 - i + 1));
+			assertTrue(compareStored(previous, id) < 0);
+			assertTrue(compareStored(id, max) < 0);
+			previous = id;
+		}
+	}
+
+	@Test
+	public void unsupportedType() {
+		assertNull(MongoReaderBase.interpolateId("a", "b", 0.5));
+	}
+
+	/** compare two UUIDs like MongoDB compares them as BinData (legacy Java encoding) */
+	private static int compareStored(UUID a, UUID b) {
+		byte[] x = stored(a);
+		byte[] y = stored(b);
+		for (int i = 0; i < 16; i++) {
+			if (x[i] != y[i]) {
+				return (x[i] & 0xff) - (y[i] & 0xff);
+			}
+		}
+		return 0;
+	}
+
+	private static byte[] stored(UUID id) {
+		return ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN)
+				.putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits()).array();
+	}
+}
@@ -0,0 +1,53 @@
+package eu.eumssi.uima.reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link MongoReaderBase#validXmlCharacters(String, String)}
+ * 
+ * @author jgrivolla
+ */
+public class ValidXmlCharactersTest {
+
+	private static final String EMOJI = "\uD83D\uDE00"; // U+1F600, a surrogate pair
+
+	@Test
+	public void cleanTextIsReturnedUnchanged() {
+		String text = "Plain text\twith\r\nline breaks, accents (\u00E9\u00E8) and \uFFFD";
+		assertSame(text, MongoReaderBase.validXmlCharacters(text));
+	}
+
+	@Test
+	public void surrogatePairsAreKept() {
+		String text = EMOJI + " smile " + EMOJI + EMOJI;
+		assertSame(text, MongoReaderBase.validXmlCharacters(text));
+	}
+
+	@Test
+	public void loneSurrogatesAreReplaced() {
+		assertEquals("a b", MongoReaderBase.validXmlCharacters("a\uD83Db"));
+		assertEquals("a b", MongoReaderBase.validXmlCharacters("a\uDE00b"));
+		assertEquals("a ", MongoReaderBase.validXmlCharacters("a\uD83D"));
+		assertEquals(" a", MongoReaderBase.validXmlCharacters("\uDE00a"));
+	}
+
+	@Test
+	public void reversedPairIsReplacedPerChar() {
+		assertEquals("a  b", MongoReaderBase.validXmlCharacters("a\uDE00\uD83Db"));
+	}
+
+	@Test
+	public void pairsNextToInvalidCharactersAreKept() {
+		assertEquals(EMOJI + " " + EMOJI, MongoReaderBase.validXmlCharacters(EMOJI + "\uD83D" + EMOJI));
+		assertEquals(" " + EMOJI + " ", MongoReaderBase.validXmlCharacters("\u0001" + EMOJI + "\uFFFE"));
+	}
+
+	@Test
+	public void controlCharactersAreReplaced() {
+		assertEquals("a b c", MongoReaderBase.validXmlCharacters("a\u0000b\u001Fc"));
+		assertEquals("abc", MongoReaderBase.validXmlCharacters("a\u0000b\uFFFFc", ""));
+	}
+}
@@ -0,0 +1,46 @@
+package eu.eumssi.uima.reader;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.XmiCasSerializer;
+import org.apache.uima.cas.impl.XmiSerializationSharedData;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.jcas.tcas.Annotation;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+/**
+ * Round trip of XMI as stored by XmiMongoConsumer through the parser of {@link XmiMongoReader}
+ * 
+ * @author jgrivolla
+ */
+public class XmiMongoReaderTest {
+
+	@Test
+	public void xmiRoundTrip() throws Exception {
+		JCas jcas = JCasFactory.createJCas();
+		jcas.setDocumentText("Hello world");
+		jcas.setDocumentLanguage("en");
+		new Annotation(jcas, 0, 5).addToIndexes();
+		new Annotation(jcas, 6, 11).addToIndexes();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		XmiCasSerializer.serialize(jcas.getCas(), out);
+		String xmi = out.toString("UTF-8");
+
+		XmiMongoReader reader = new XmiMongoReader();
+		for (int i = 0; i < 2; i++) { // the parser is reused
+			JCas loaded = JCasFactory.createJCas();
+			reader.deserializeXmi(new InputSource(new StringReader(xmi)), loaded.getCas(),
+					new XmiSerializationSharedData(), -1, false);
+			assertEquals("Hello world", loaded.getDocumentText());
+			assertEquals("en", loaded.getDocumentLanguage());
+			CAS cas = loaded.getCas();
+			assertEquals(3, cas.getAnnotationIndex().size()); // including the document annotation
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package eu.eumssi.uima.reader.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link Checkpoint}
+ * 
+ * @author jgrivolla
+ */
+public class CheckpointTest {
+
+	/** keeps the saved checkpoint in memory */
+	private static class MemoryStore implements Checkpoint.Store {
+		Object lastId = null;
+		List<Object> skipped = new ArrayList<Object>();
+
+		public Object load() {
+			return this.lastId;
+		}
+
+		public List<Object> loadSkipped() {
+			return new ArrayList<Object>(this.skipped);
+		}
+
+		public void save(Object lastId, Collection<Object> skipped) {
+			this.lastId = lastId;
+			this.skipped = new ArrayList<Object>(skipped);
+		}
+	}
+
+	@Test
+	public void advancesOnlyOverAcknowledgedDocuments() throws Exception {
+		MemoryStore store = new MemoryStore();
+		Checkpoint checkpoint = Checkpoint.register("test", store, 1, 10);
+		for (int id = 1; id <= 3; id++) {
+			checkpoint.delivered(id);
+		}
+		Checkpoint.acknowledge("test", "2");
+		assertNull(checkpoint.getLastConsumed());
+		Checkpoint.acknowledge("test", "1");
+		assertEquals(2, checkpoint.getLastConsumed());
+		assertEquals(2, store.lastId);
+	}
+
+	@Test
+	public void unacknowledgedDocumentIsKeptForResume() throws Exception {
+		MemoryStore store = new MemoryStore();
+		Checkpoint checkpoint = Checkpoint.register("test", store, 1, 2);
+		checkpoint.delivered(1); // never acknowledged
+		checkpoint.delivered(2);
+		Checkpoint.acknowledge("test", "2");
+		assertNull(checkpoint.getLastConsumed());
+		checkpoint.delivered(3); // window full
+		assertEquals(2, checkpoint.getLastConsumed());
+		assertEquals(Arrays.<Object>asList(1), checkpoint.getSkipped());
+		checkpoint.save();
+		assertEquals(Arrays.<Object>asList(1), store.skipped);
+
+		// resumed run reads the skipped document again
+		Checkpoint resumed = Checkpoint.register("test", store, 1, 2);
+		assertEquals(Arrays.<Object>asList(1), resumed.getSkipped());
+		resumed.delivered(1);
+		resumed.delivered(3);
+		Checkpoint.acknowledge("test", "1");
+		assertEquals(Collections.emptyList(), resumed.getSkipped());
+		assertEquals(Collections.emptyList(), store.skipped);
+		assertEquals(2, resumed.getLastConsumed()); // not moved back by the retried document
+	}
+}
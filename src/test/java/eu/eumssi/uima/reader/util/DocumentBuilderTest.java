@@ -0,0 +1,59 @@
+package eu.eumssi.uima.reader.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Tests counting of present and missing fields
+ * @author jgrivolla
+ *
+ */
+public class DocumentBuilderTest {
+
+	@Test
+	public void countsNullValuesAsMissing() {
+		DocumentBuilder.Field field = new DocumentBuilder.Field("meta.source.headline", "__");
+		field.get(new BasicDBObject("meta__source__headline", "title"));
+		field.get(new BasicDBObject("meta__source__headline", null));
+		field.get(new BasicDBObject());
+		assertEquals(1, field.getPresent());
+		assertEquals(2, field.getMissing());
+	}
+
+	@Test
+	public void countsEmptyProjectionsAsMissing() {
+		DocumentBuilder.Field field = new DocumentBuilder.Field("meta.extracted.asr", "__");
+		field.setProjected(true);
+		DBObject missing = new BasicDBObject("meta__extracted__asr", new BasicDBObject("content", null));
+		assertNull(field.get(missing));
+		assertNull(field.get(new BasicDBObject("meta__extracted__asr", new BasicDBObject())));
+		DBObject present = new BasicDBObject("meta__extracted__asr",
+				new BasicDBObject("content", Arrays.asList(new BasicDBObject("item", "hello"))));
+		field.get(present);
+		assertEquals(1, field.getPresent());
+		assertEquals(2, field.getMissing());
+	}
+
+	@Test
+	public void keepsUnprojectedSubDocuments() {
+		DocumentBuilder.Field field = new DocumentBuilder.Field("meta.extracted.asr", "__");
+		field.get(new BasicDBObject("meta__extracted__asr", new BasicDBObject("content", null)));
+		assertEquals(1, field.getPresent());
+	}
+
+	@Test
+	public void countsOnlyRequestedMetaFields() {
+		EumssiMetaLoader loader = new EumssiMetaLoader("__");
+		assertEquals(1, loader.getFields(null).size());
+		assertEquals(2, loader.getFields(new String[] {"meta.source.datePublished", "meta.source.url"}).size());
+		assertEquals("meta.source.datePublished",
+				loader.getFields(new String[] {"meta.source.datePublished"}).get(1).getPath());
+	}
+}
@@ -0,0 +1,28 @@
+package eu.eumssi.uima.reader.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.uima.cas.CAS;
+import org.junit.Test;
+
+/**
+ * Tests for the type selection of {@link XmiFilter}
+ * 
+ * @author jgrivolla
+ */
+public class XmiFilterTest {
+
+	@Test
+	public void builtInTypesAreAlwaysSelected() {
+		XmiFilter filter = new XmiFilter(null, null,
+				Arrays.asList("eu.eumssi.uima.ts.SourceMeta"), Arrays.asList(CAS.TYPE_NAME_ANNOTATION), null);
+		assertTrue(filter.isTypeSelected(CAS.TYPE_NAME_SOFA));
+		assertTrue(filter.isTypeSelected(CAS.TYPE_NAME_DOCUMENT_ANNOTATION));
+		assertTrue(filter.isTypeSelected("eu.eumssi.uima.ts.SourceMeta"));
+		assertFalse(filter.isTypeSelected(CAS.TYPE_NAME_ANNOTATION));
+		assertFalse(filter.isTypeSelected("de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity"));
+	}
+}